@@ -0,0 +1,155 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static gitlet.Utils.*;
+
+/**
+ * Blobs stored as lists of content-defined chunks.
+ *
+ * A file is cut where a rolling gear hash of its last 64 bytes has its top
+ * bits clear, so cut points depend only on the nearby contents: an insertion
+ * or an append only changes the chunks around it, and a region shared by two
+ * files yields the same chunks in both. Each chunk is stored once, named by
+ * its SHA1 hash. Cuts follow FastCDC: no cut in the first MIN_SIZE bytes of
+ * a chunk, a harder condition before AVG_SIZE and an easier one after it,
+ * and a forced cut at MAX_SIZE, so chunk sizes stay close to AVG_SIZE.
+ *
+ * A chunk list is encoded as the magic "GCKL" and the varint length of
+ * the blob, followed by the varint number of chunks and, for each chunk,
+ * its raw 20-byte hash and its varint length.
+ *
+ * @author Guang Hou
+ */
+public class ChunkList {
+    /* Magic bytes at the start of a chunk list. */
+    private static final byte[] MAGIC = {'G', 'C', 'K', 'L'};
+    /* The smallest chunk, except for the last one of a blob. */
+    static final int MIN_SIZE = 2 * 1024;
+    /* The size chunks are cut around. */
+    static final int AVG_SIZE = 8 * 1024;
+    /* The largest chunk. */
+    static final int MAX_SIZE = 64 * 1024;
+    /* The bits that must be clear for a cut before AVG_SIZE: 15 bits, a cut every 32 KB. */
+    private static final long HARD_MASK = 0xFFFE_0000_0000_0000L;
+    /* The bits that must be clear for a cut after AVG_SIZE: 11 bits, a cut every 2 KB. */
+    private static final long EASY_MASK = 0xFFE0_0000_0000_0000L;
+    /* A random value for each byte, fixed so that every repository cuts alike. */
+    private static final long[] GEAR = new long[256];
+
+    static {
+        long seed = 0x6769746C6574L;
+        for (int i = 0; i < GEAR.length; i += 1) {
+            // SplitMix64.
+            seed += 0x9E3779B97F4A7C15L;
+            long z = seed;
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            GEAR[i] = z ^ (z >>> 31);
+        }
+    }
+
+    /**
+     * Find where to cut the next chunk of a blob read through a window.
+     * The cut only depends on the first MAX_SIZE bytes after the start of
+     * the chunk, so a window of MAX_SIZE bytes cuts a stream exactly as
+     * the whole blob would be cut.
+     *
+     * @param window The bytes from the start of the chunk.
+     * @param length The number of bytes in the window: MAX_SIZE, or fewer
+     *               only at the end of the blob.
+     * @return The length of the chunk.
+     */
+    public static int nextChunk(byte[] window, int length) {
+        if (length <= MIN_SIZE) {
+            return length;
+        }
+        int limit = Math.min(length, MAX_SIZE);
+        int normal = Math.min(length, AVG_SIZE);
+        long hash = 0;
+        int i = MIN_SIZE;
+        for (; i < normal; i += 1) {
+            hash = (hash << 1) + GEAR[window[i] & 0xFF];
+            if ((hash & HARD_MASK) == 0) {
+                return i + 1;
+            }
+        }
+        for (; i < limit; i += 1) {
+            hash = (hash << 1) + GEAR[window[i] & 0xFF];
+            if ((hash & EASY_MASK) == 0) {
+                return i + 1;
+            }
+        }
+        return limit;
+    }
+
+    /**
+     * Encode a chunk list.
+     *
+     * @param ids   The hash of each chunk, in order.
+     * @param sizes The length of each chunk, as returned by nextChunk.
+     * @return The encoded chunk list.
+     */
+    public static byte[] encode(List<String> ids, List<Integer> sizes) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(MAGIC, 0, MAGIC.length);
+        long length = 0;
+        for (int size : sizes) {
+            length += size;
+        }
+        writeVarint(out, length);
+        writeVarint(out, ids.size());
+        for (int i = 0; i < ids.size(); i += 1) {
+            out.write(hexToBytes(ids.get(i)), 0, 20);
+            writeVarint(out, sizes.get(i));
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Get the length of the blob of a chunk list.
+     *
+     * @param list The encoded chunk list.
+     * @return The length in bytes.
+     */
+    public static long length(byte[] list) {
+        ByteBuffer in = open(list);
+        return readVarint(in);
+    }
+
+    /**
+     * Get the chunks of a chunk list.
+     *
+     * @param list The encoded chunk list.
+     * @return The hash of each chunk, in order.
+     */
+    public static List<String> ids(byte[] list) {
+        ByteBuffer in = open(list);
+        readVarint(in);
+        int count = (int) readVarint(in);
+        List<String> result = new ArrayList<>(count);
+        byte[] raw = new byte[20];
+        for (int i = 0; i < count; i += 1) {
+            in.get(raw);
+            result.add(bytesToHex(raw));
+            readVarint(in);
+        }
+        return result;
+    }
+
+    /**
+     * Check the magic of a chunk list and return a buffer positioned after it.
+     */
+    private static ByteBuffer open(byte[] list) {
+        ByteBuffer in = ByteBuffer.wrap(list);
+        for (byte b : MAGIC) {
+            if (in.get() != b) {
+                throw error("Corrupt chunk list.");
+            }
+        }
+        return in;
+    }
+}
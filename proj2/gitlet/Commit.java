@@ -1,18 +1,52 @@
 package gitlet;
 
+import java.io.ByteArrayOutputStream;
 import java.io.Serializable;
-import java.text.SimpleDateFormat;
+import java.nio.ByteBuffer;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.TreeMap;
+
+import static gitlet.Utils.*;
 
 /**
  * This class provides the way to represent Commit information.
  *
+ * Commits are stored in a compact binary encoding:
+ * the magic "GCMT", a version byte, a flags byte telling whether the
+ * parents, the blobs or the tree are present, the varint timestamp in milliseconds,
+ * the varint number of parents followed by their raw 20-byte ids,
+ * the varint length of the UTF-8 message followed by the message,
+ * and finally the raw 20-byte id of the root Tree of the committed files.
+ * Version 1 commits stored the varint number of blobs instead, followed by,
+ * for each file in sorted order, the varint length of the UTF-8 file name,
+ * the name and the raw 20-byte blob hash.
+ * Everything before the files is the header, so a decoded Commit only
+ * builds its blobs map the first time it is asked for.
+ * Commits written by older versions with Java serialization can still be read.
+ *
  * @author Guang Hou
  */
 public class Commit implements Serializable, Comparable<Commit> {
+    /* Fixed so that commits serialized by older versions can still be read. */
+    private static final long serialVersionUID = -8832572719085015084L;
+    /* Magic bytes at the start of an encoded Commit. */
+    private static final byte[] MAGIC = {'G', 'C', 'M', 'T'};
+    /* The encoding version written; version 1 commits are still read. */
+    private static final int VERSION = 2;
+    /* Flag telling that the parents list is present. */
+    private static final int HAS_PARENTS = 1;
+    /* Flag telling that the blobs map is present. */
+    private static final int HAS_BLOBS = 2;
+    /* Flag telling that the id of the root tree is present. */
+    private static final int HAS_TREE = 4;
+    /* The format of dates in the log, shared by all threads. */
+    private static final DateTimeFormatter DATE_FORMAT =
+            DateTimeFormatter.ofPattern("E MMM dd HH:mm:ss yyyy Z").withZone(ZoneId.systemDefault());
 
     /* The message of this Commit. */
     private String message;
@@ -22,6 +56,14 @@ public class Commit implements Serializable, Comparable<Commit> {
     private ArrayList<String> parentIDs = new ArrayList<>();
     /* The HashMap storing all the files in the format of fileName: hash. */
     private HashMap<String, String> blobs = new HashMap<>();
+    /* The id of the root Tree of the files, or null if the blobs are stored inline. */
+    private String treeID;
+    /* The encoded Commit whose blobs are not decoded yet, or null. */
+    private transient byte[] encoded;
+    /* The position of the blobs in the encoded Commit. */
+    private transient int blobsOffset;
+    /* Run when the estimated size of this Commit changes, or null. */
+    private transient Runnable onResize;
 
     /**
      * The default constructor, used for the initial commit.
@@ -36,6 +78,7 @@ public class Commit implements Serializable, Comparable<Commit> {
     /**
      * The copy constructor which will copy most contents from parentCommit.
      * It will set the timestamp as the time of commit.
+     * The files are shared through the parent's root tree rather than copied.
      *
      * @param parentCommitID The hash id of parent Commit.
      * @param parentCommit   The parent Commit object.
@@ -44,9 +87,14 @@ public class Commit implements Serializable, Comparable<Commit> {
         timestamp = new Date();
         parentIDs.clear();
         parentIDs.add(parentCommitID);
-        Map<String, String> parentBlobs = parentCommit.getBlobs();
-        if (parentBlobs != null) {
-            blobs = new HashMap<String, String>(parentBlobs);
+        treeID = parentCommit.treeID;
+        if (treeID != null) {
+            blobs = null;
+        } else {
+            Map<String, String> parentBlobs = parentCommit.getBlobs();
+            if (parentBlobs != null) {
+                blobs = new HashMap<String, String>(parentBlobs);
+            }
         }
     }
 
@@ -58,31 +106,27 @@ public class Commit implements Serializable, Comparable<Commit> {
         return "Date - " + timestamp + "\n"
                 + "message - " + message + "\n"
                 + "parents - " + parentIDs + "\n"
-                + "blobs - " + blobs;
+                + "blobs - " + getBlobs();
     }
 
     /**
      * This is used in other classes for printing the Commit object.
      */
     public String toString(String id) {
-        String merge = "";
+        StringBuilder s = new StringBuilder();
+        s.append("===\n").append("commit ").append(id).append("\n");
 
         if (parentIDs != null && parentIDs.size() > 1) {
-            merge += "Merge: ";
+            s.append("Merge: ");
             for (String parent : parentIDs) {
-                merge += parent.substring(0, 7) + " ";
+                s.append(parent, 0, 7).append(" ");
             }
-            merge += "\n";
+            s.append("\n");
         }
 
-        SimpleDateFormat dateFormat = new SimpleDateFormat("E MMM dd HH:mm:ss yyyy Z");
-        String stringDate = dateFormat.format(timestamp);
-
-        return "===" + "\n"
-                + "commit " + id + "\n"
-                + merge
-                + "Date: " + stringDate + "\n"
-                + message + "\n";
+        s.append("Date: ").append(DATE_FORMAT.format(timestamp.toInstant())).append("\n");
+        s.append(message).append("\n");
+        return s.toString();
     }
 
     /**
@@ -101,6 +145,16 @@ public class Commit implements Serializable, Comparable<Commit> {
      */
     public void setMessage(String message) {
         this.message = message;
+        resized();
+    }
+
+    /**
+     * Getter method for instance variable timestamp.
+     *
+     * @return this.timestamp
+     */
+    public Date getTimestamp() {
+        return timestamp;
     }
 
     /**
@@ -118,6 +172,13 @@ public class Commit implements Serializable, Comparable<Commit> {
      * @return The file blobs in HashMap<fileName, fileHash>.
      */
     public HashMap<String, String> getBlobs() {
+        if (encoded != null) {
+            decodeBlobs();
+            resized();
+        } else if (blobs == null && treeID != null) {
+            blobs = Tree.flatten(treeID);
+            resized();
+        }
         return blobs;
     }
 
@@ -128,6 +189,31 @@ public class Commit implements Serializable, Comparable<Commit> {
      */
     public void setBlobs(HashMap<String, String> blobs) {
         this.blobs = blobs;
+        this.encoded = null;
+        this.treeID = null;
+        resized();
+    }
+
+    /**
+     * Getter method for instance variable treeID.
+     *
+     * @return The id of the root Tree, or null if the files are not stored as a tree.
+     */
+    public String getTreeID() {
+        return treeID;
+    }
+
+    /**
+     * Setter method for instance variable treeID.
+     * The blobs map is rebuilt from the tree when it is next used.
+     *
+     * @param treeID The id of the root Tree.
+     */
+    public void setTreeID(String treeID) {
+        this.treeID = treeID;
+        this.blobs = null;
+        this.encoded = null;
+        resized();
     }
 
     /**
@@ -137,6 +223,7 @@ public class Commit implements Serializable, Comparable<Commit> {
      */
     public void addParentID(String parentID) {
         this.parentIDs.add(parentID);
+        resized();
     }
 
     /**
@@ -149,4 +236,161 @@ public class Commit implements Serializable, Comparable<Commit> {
     public int compareTo(Commit c) {
         return this.timestamp.compareTo(c.timestamp);
     }
+
+    /**
+     * Estimate the memory this Commit takes, for the commit cache.
+     * The estimate grows once the blobs are decoded or the tree is flattened.
+     *
+     * @return The estimated size in bytes.
+     */
+    public long estimatedSize() {
+        long size = 128 + (message == null ? 0 : 48 + message.length());
+        if (parentIDs != null) {
+            size += 96L * parentIDs.size();
+        }
+        if (treeID != null) {
+            size += 96;
+        }
+        if (encoded != null) {
+            size += 16 + encoded.length;
+        }
+        if (blobs != null) {
+            // A map entry with its name and a hash String.
+            size += 200L * blobs.size();
+        }
+        return size;
+    }
+
+    /**
+     * Set what to run whenever the estimated size of this Commit changes,
+     * which the CommitCache uses to weigh a kept commit again.
+     *
+     * @param action The action, or null for none.
+     */
+    void onResize(Runnable action) {
+        onResize = action;
+    }
+
+    /**
+     * Run the resize action, if any, after this Commit changed.
+     */
+    private void resized() {
+        if (onResize != null) {
+            onResize.run();
+        }
+    }
+
+    /**
+     * Encode this Commit in the compact binary format.
+     *
+     * @return The encoded bytes, whose SHA1 hash is the commit id.
+     */
+    public byte[] encode() {
+        HashMap<String, String> fileBlobs = treeID != null ? null : getBlobs();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(MAGIC, 0, MAGIC.length);
+        out.write(VERSION);
+        out.write((parentIDs != null ? HAS_PARENTS : 0) | (fileBlobs != null ? HAS_BLOBS : 0)
+                | (treeID != null ? HAS_TREE : 0));
+        writeVarint(out, timestamp.getTime());
+        writeVarint(out, parentIDs == null ? 0 : parentIDs.size());
+        if (parentIDs != null) {
+            for (String parentID : parentIDs) {
+                out.write(hexToBytes(parentID), 0, 20);
+            }
+        }
+        writeString(out, message);
+        if (treeID != null) {
+            out.write(hexToBytes(treeID), 0, 20);
+        } else if (fileBlobs != null) {
+            writeVarint(out, fileBlobs.size());
+            for (Map.Entry<String, String> entry : new TreeMap<>(fileBlobs).entrySet()) {
+                writeString(out, entry.getKey());
+                out.write(hexToBytes(entry.getValue()), 0, 20);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Read a stored Commit in either format.
+     *
+     * @param bytes The stored commit.
+     * @return The Commit object.
+     */
+    public static Commit fromBytes(byte[] bytes) {
+        return isEncoded(bytes) ? decode(bytes) : deserialize(bytes, Commit.class);
+    }
+
+    /**
+     * Check whether the bytes are a Commit in the compact binary format.
+     *
+     * @param bytes The stored commit.
+     * @return False for commits written with Java serialization.
+     */
+    public static boolean isEncoded(byte[] bytes) {
+        if (bytes.length < MAGIC.length + 2) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i += 1) {
+            if (bytes[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decode the header of an encoded Commit: parents, timestamp, message and tree id.
+     * The blobs map is only built if getBlobs is called.
+     *
+     * @param bytes The encoded Commit.
+     * @return The Commit object.
+     */
+    public static Commit decode(byte[] bytes) {
+        ByteBuffer in = ByteBuffer.wrap(bytes);
+        in.position(MAGIC.length);
+        int version = in.get();
+        if (version < 1 || version > VERSION) {
+            throw error("Unknown commit version.");
+        }
+        int flags = in.get();
+        Commit c = new Commit();
+        c.timestamp = new Date(readVarint(in));
+        int parentCount = (int) readVarint(in);
+        c.parentIDs = (flags & HAS_PARENTS) != 0 ? new ArrayList<>(parentCount) : null;
+        byte[] raw = new byte[20];
+        for (int i = 0; i < parentCount; i += 1) {
+            in.get(raw);
+            c.parentIDs.add(bytesToHex(raw));
+        }
+        c.message = readString(in);
+        c.blobs = null;
+        if ((flags & HAS_TREE) != 0) {
+            in.get(raw);
+            c.treeID = bytesToHex(raw);
+        } else if ((flags & HAS_BLOBS) != 0) {
+            c.encoded = bytes;
+            c.blobsOffset = in.position();
+        }
+        return c;
+    }
+
+    /**
+     * Build the blobs map from the encoded Commit.
+     */
+    private void decodeBlobs() {
+        ByteBuffer in = ByteBuffer.wrap(encoded);
+        in.position(blobsOffset);
+        int count = (int) readVarint(in);
+        HashMap<String, String> result = new HashMap<>(count * 2);
+        byte[] raw = new byte[20];
+        for (int i = 0; i < count; i += 1) {
+            String fileName = readString(in);
+            in.get(raw);
+            result.put(fileName, bytesToHex(raw));
+        }
+        blobs = result;
+        encoded = null;
+    }
 }
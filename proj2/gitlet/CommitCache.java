@@ -0,0 +1,153 @@
+package gitlet;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * The commits decoded by this process, kept for later reads within a budget of memory.
+ *
+ * A commit never changes once written, so a decoded commit stays valid for
+ * the whole process, across the commands a daemon serves, and the ancestors
+ * shared by many branches of a merge-heavy history are decoded once.
+ * The commits are kept in a LinkedHashMap in access order: a hit moves a
+ * commit to the end, and the least recently used commits are evicted from
+ * the front until the estimated size of the kept commits fits the budget
+ * set by commits.cacheBytes. A commit grows when its blobs are first used,
+ * which may happen long after it is handed out, so every kept commit tells
+ * the cache when its size changes and is weighed again at that moment.
+ *
+ * @author Guang Hou
+ */
+public class CommitCache {
+    /* The config key of the budget in bytes. */
+    static final String BUDGET_KEY = "commits.cacheBytes";
+    /* The budget when the config does not set one. */
+    private static final long DEFAULT_BUDGET = 32L << 20;
+
+    /**
+     * A kept commit and the size it was last weighed at.
+     */
+    private static class Entry {
+        /* The commit. */
+        private final Commit commit;
+        /* The estimated size in bytes. */
+        private long size;
+        /* Whether the commit is still kept, so a late resize of an evicted one is ignored. */
+        private boolean kept = true;
+
+        Entry(Commit commit) {
+            this.commit = commit;
+            this.size = commit.estimatedSize();
+        }
+    }
+
+    /* The kept commits in the format of commitID : Entry, least recently used first. */
+    private static final LinkedHashMap<String, Entry> ENTRIES = new LinkedHashMap<>(256, 0.75f, true);
+    /* The total estimated size of the kept commits. */
+    private static long bytes;
+    /* The reads answered from the cache, the reads that decoded a commit,
+       and the commits evicted, since the process started. */
+    private static long hits;
+    private static long misses;
+    private static long evictions;
+
+    /**
+     * Read a commit, loose or packed, decoding it only if it is not kept.
+     *
+     * @param commitID The commit id.
+     * @return The Commit object, or null if there is no such commit.
+     */
+    public static synchronized Commit get(String commitID) {
+        Entry e = ENTRIES.get(commitID);
+        if (e != null) {
+            hits += 1;
+            return e.commit;
+        }
+        misses += 1;
+        byte[] contents = ObjectStore.read(ObjectStore.Kind.COMMIT, commitID);
+        if (contents == null) {
+            return null;
+        }
+        return put(commitID, Commit.fromBytes(contents));
+    }
+
+    /**
+     * Keep a decoded commit, evicting others if it does not fit the budget.
+     *
+     * @param commitID The commit id.
+     * @param commit   The Commit object.
+     * @return The Commit object.
+     */
+    static synchronized Commit put(String commitID, Commit commit) {
+        Entry old = ENTRIES.remove(commitID);
+        if (old != null) {
+            old.kept = false;
+            bytes -= old.size;
+        }
+        Entry e = new Entry(commit);
+        commit.onResize(() -> reweigh(e));
+        ENTRIES.put(commitID, e);
+        bytes += e.size;
+        trim();
+        return commit;
+    }
+
+    /**
+     * Forget the kept commits, for example after gc deleted some.
+     * The counters are kept.
+     */
+    static synchronized void clear() {
+        for (Entry e : ENTRIES.values()) {
+            e.kept = false;
+        }
+        ENTRIES.clear();
+        bytes = 0;
+    }
+
+    /**
+     * Describe the cache for the print command.
+     *
+     * @return The number and size of the kept commits and the counters.
+     */
+    static synchronized String stats() {
+        return String.format("%d commits, %d bytes of %d, %d hits, %d misses, %d evictions",
+                ENTRIES.size(), bytes, budget(), hits, misses, evictions);
+    }
+
+    /**
+     * Weigh a kept commit again after it changed, evicting commits if it no longer fits.
+     *
+     * @param e The entry of the commit.
+     */
+    private static synchronized void reweigh(Entry e) {
+        if (!e.kept) {
+            return;
+        }
+        long size = e.commit.estimatedSize();
+        bytes += size - e.size;
+        e.size = size;
+        trim();
+    }
+
+    /**
+     * Evict the least recently used commits until the kept ones fit the budget.
+     */
+    private static void trim() {
+        long budget = budget();
+        Iterator<Entry> it = ENTRIES.values().iterator();
+        while (bytes > budget && it.hasNext()) {
+            Entry e = it.next();
+            e.kept = false;
+            bytes -= e.size;
+            it.remove();
+            evictions += 1;
+        }
+    }
+
+    /**
+     * Get the budget in bytes.
+     */
+    private static long budget() {
+        return Config.getLong(BUDGET_KEY, DEFAULT_BUDGET);
+    }
+}
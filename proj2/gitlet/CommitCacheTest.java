@@ -0,0 +1,89 @@
+package gitlet;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that the CommitCache weighs a kept commit again whenever it changes.
+ *
+ * @author Guang Hou
+ */
+public class CommitCacheTest {
+    /* The format of CommitCache.stats. */
+    private static final Pattern STATS = Pattern.compile(
+            "(\\d+) commits, (\\d+) bytes of (\\d+), (\\d+) hits, (\\d+) misses, (\\d+) evictions");
+
+    @Before
+    public void clearCache() {
+        CommitCache.clear();
+    }
+
+    /**
+     * Get one number of the stats: 1 for commits, 2 for bytes, 3 for the budget, 6 for evictions.
+     */
+    private static long stat(int group) {
+        Matcher m = STATS.matcher(CommitCache.stats());
+        assertTrue("Unexpected stats " + CommitCache.stats(), m.matches());
+        return Long.parseLong(m.group(group));
+    }
+
+    /**
+     * Build a blobs map of n files.
+     */
+    private static HashMap<String, String> files(int n) {
+        HashMap<String, String> result = new HashMap<>();
+        for (int i = 0; i < n; i += 1) {
+            result.put("f" + i, "b" + i);
+        }
+        return result;
+    }
+
+    /**
+     * A commit handed out before another one, then given its files,
+     * is weighed again and evicted once it no longer fits the budget.
+     */
+    @Test
+    public void earlierCommitGrowingPastBudgetIsEvicted() {
+        Commit a = CommitCache.put("a", new Commit());
+        Commit b = CommitCache.put("b", new Commit());
+        assertEquals(2, stat(1));
+        long evictions = stat(6);
+
+        a.setBlobs(files((int) (stat(3) / 200) + 1));
+        assertTrue(a.estimatedSize() > stat(3));
+        assertEquals(1, stat(1));
+        assertEquals(b.estimatedSize(), stat(2));
+        assertEquals(evictions + 1, stat(6));
+        assertSame(b, CommitCache.get("b"));
+    }
+
+    /**
+     * A commit that grows within the budget is counted at its new size.
+     */
+    @Test
+    public void growingCommitIsWeighedAgain() {
+        Commit a = CommitCache.put("a", new Commit());
+        Commit b = CommitCache.put("b", new Commit());
+        a.setBlobs(files(10));
+        assertEquals(2, stat(1));
+        assertEquals(a.estimatedSize() + b.estimatedSize(), stat(2));
+    }
+
+    /**
+     * A commit that changes after it was dropped no longer counts.
+     */
+    @Test
+    public void droppedCommitIsNotWeighed() {
+        Commit a = CommitCache.put("a", new Commit());
+        CommitCache.clear();
+        a.setBlobs(files(10));
+        assertEquals(0, stat(1));
+        assertEquals(0, stat(2));
+    }
+}
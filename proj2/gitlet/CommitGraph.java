@@ -0,0 +1,658 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.TreeSet;
+import java.util.function.Function;
+
+import static gitlet.Utils.*;
+
+/**
+ * The commit-graph: the shape of the history without the commits themselves.
+ *
+ * Every commit gets a position, and the graph stores for each position
+ * its id, timestamp, generation number and the positions of its parents.
+ * The generation number of a root commit is 1, and of any other commit
+ * one more than the largest generation number of its parents, so an ancestor
+ * always has a smaller generation number than its descendants.
+ *
+ * The file starts with the magic "GCGR" and a version number, followed by
+ * one fixed-size record per commit: 20-byte raw id, 8-byte timestamp, 4-byte
+ * generation and the 4-byte positions of the first and second parent, -1 if
+ * there is none. Parents always come before their children, so new commits are
+ * simply appended, and the file is memory-mapped so that a record is read
+ * at its position without parsing the others.
+ *
+ * The position of an id is found in commit-graph-lookup, the ids of the
+ * graph sorted with their positions behind a 256-entry fan-out table, by a
+ * binary search. The records appended after the lookup was written are kept
+ * in a small map; once there are TAIL_LIMIT of them, and at every gc, the
+ * lookup is written again, so a commit costs time in the size of that tail
+ * rather than of the history.
+ *
+ * @author Guang Hou
+ */
+public class CommitGraph {
+    /* The .gitlet/commit-graph file. */
+    static final File GRAPH_FILE = join(Repository.GITLET_DIR, "commit-graph");
+    /* The .gitlet/commit-graph-lookup file. */
+    static final File LOOKUP_FILE = join(Repository.GITLET_DIR, "commit-graph-lookup");
+    /* Magic bytes at the start of the graph file. */
+    private static final byte[] MAGIC = {'G', 'C', 'G', 'R'};
+    /* Magic bytes at the start of the lookup file. */
+    private static final byte[] LOOKUP_MAGIC = {'G', 'C', 'G', 'L'};
+    /* The format version of fixed-size records; version 1 files are built again. */
+    private static final int VERSION = 2;
+    /* Size of the graph header: magic and version. */
+    private static final int HEADER = 8;
+    /* Size of a record: id, timestamp, generation and two parent positions. */
+    private static final int RECORD = 20 + 8 + 4 + 4 + 4;
+    /* Size of the lookup header: magic, version, count and the fan-out table. */
+    private static final int LOOKUP_HEADER = 12 + 256 * 4;
+    /* Size of a lookup entry: id and position. */
+    private static final int LOOKUP_ENTRY = 20 + 4;
+    /* The number of records past the lookup that makes it written again. */
+    private static final int TAIL_LIMIT = 1024;
+
+    /* Flag of commits reachable from the first commit of a merge-base query. */
+    private static final byte PARENT1 = 1;
+    /* Flag of commits reachable from the second commit of a merge-base query. */
+    private static final byte PARENT2 = 2;
+    /* Flag of commits below a common ancestor, which cannot be the best one. */
+    private static final byte STALE = 4;
+
+    /* The graph of this repository, loaded on first use. */
+    private static CommitGraph graph;
+
+    /* The memory-mapped graph file, mapped again when records are appended. */
+    private MappedByteBuffer records;
+    /* The number of commits in the graph. */
+    private int size;
+    /* The memory-mapped lookup file. */
+    private MappedByteBuffer lookup;
+    /* The number of ids in the lookup, which are those of the first positions. */
+    private int lookupCount;
+    /* The positions of the commits appended after the lookup was written. */
+    private final HashMap<String, Integer> tail = new HashMap<>();
+
+    /**
+     * Get the commit-graph of the repository, mapping GRAPH_FILE on first use,
+     * or building it from all commits if the file is missing, of an older
+     * version or has a torn header.
+     *
+     * @return The CommitGraph object.
+     */
+    public static CommitGraph get() {
+        if (graph == null) {
+            if (!isValid()) {
+                build();
+            }
+            graph = new CommitGraph();
+            graph.load();
+        }
+        return graph;
+    }
+
+    /**
+     * Forget the loaded graph, so the next use maps GRAPH_FILE again.
+     */
+    static void reset() {
+        graph = null;
+    }
+
+    /**
+     * Check that GRAPH_FILE exists and starts with a complete header of this version.
+     */
+    private static boolean isValid() {
+        if (!GRAPH_FILE.isFile() || GRAPH_FILE.length() < HEADER) {
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(GRAPH_FILE.toPath()))) {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            return Arrays.equals(magic, MAGIC) && in.readInt() == VERSION;
+        } catch (IOException e) {
+            throw error("Cannot read commit-graph.");
+        }
+    }
+
+    /**
+     * Map GRAPH_FILE and the lookup, and collect the records past the lookup.
+     */
+    private void load() {
+        long length = GRAPH_FILE.length();
+        if ((length - HEADER) % RECORD != 0) {
+            // A record cut short by a crash is dropped, so that new records
+            // are appended after the last complete one; position() adds it back.
+            length -= (length - HEADER) % RECORD;
+            try (FileChannel ch = FileChannel.open(GRAPH_FILE.toPath(), StandardOpenOption.WRITE)) {
+                ch.truncate(length);
+            } catch (IOException e) {
+                throw error("Cannot write commit-graph.");
+            }
+        }
+        size = (int) ((length - HEADER) / RECORD);
+        records = map(GRAPH_FILE);
+        loadLookup();
+    }
+
+    /**
+     * Map LOOKUP_FILE, writing it again if it is missing, corrupt or covers
+     * records the graph does not have, and collect the records past it.
+     */
+    private void loadLookup() {
+        lookup = LOOKUP_FILE.isFile() && LOOKUP_FILE.length() >= LOOKUP_HEADER
+                ? map(LOOKUP_FILE) : null;
+        boolean valid = lookup != null;
+        for (int i = 0; valid && i < LOOKUP_MAGIC.length; i += 1) {
+            valid = lookup.get(i) == LOOKUP_MAGIC[i];
+        }
+        if (valid) {
+            lookupCount = lookup.getInt(8);
+            valid = lookup.getInt(4) == VERSION && lookupCount <= size
+                    && LOOKUP_FILE.length() == LOOKUP_HEADER + (long) lookupCount * LOOKUP_ENTRY;
+        }
+        if (!valid) {
+            writeLookup();
+            return;
+        }
+        tail.clear();
+        for (int i = lookupCount; i < size; i += 1) {
+            tail.put(id(i), i);
+        }
+    }
+
+    /**
+     * Write LOOKUP_FILE from all records of the graph, and map it.
+     */
+    private void writeLookup() {
+        String[] ids = new String[size];
+        Integer[] order = new Integer[size];
+        int[] fanout = new int[256];
+        for (int i = 0; i < size; i += 1) {
+            ids[i] = id(i);
+            order[i] = i;
+            fanout[records.get(HEADER + i * RECORD) & 0xff] += 1;
+        }
+        Arrays.sort(order, (x, y) -> ids[x].compareTo(ids[y]));
+        File temp = join(Repository.GITLET_DIR, LOOKUP_FILE.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(temp.toPath())))) {
+            out.write(LOOKUP_MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(size);
+            int total = 0;
+            for (int bucketSize : fanout) {
+                total += bucketSize;
+                out.writeInt(total);
+            }
+            for (int i : order) {
+                out.write(hexToBytes(ids[i]));
+                out.writeInt(i);
+            }
+        } catch (IOException e) {
+            throw error("Cannot write commit-graph.");
+        }
+        install(temp, LOOKUP_FILE);
+        lookup = map(LOOKUP_FILE);
+        lookupCount = size;
+        tail.clear();
+    }
+
+    /**
+     * Write the lookup again if records were appended since it was written.
+     * Used by gc, like CommitIndex.merge.
+     */
+    public void merge() {
+        if (!tail.isEmpty()) {
+            writeLookup();
+        }
+    }
+
+    /**
+     * Map a whole file into memory, read only.
+     */
+    private static MappedByteBuffer map(File f) {
+        try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            return ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+        } catch (IOException e) {
+            throw error("Cannot read commit-graph.");
+        }
+    }
+
+    /**
+     * Replace a file by a temporary file that is already complete.
+     */
+    private static void install(File temp, File target) {
+        Journal.syncFile(temp);
+        try {
+            Files.move(temp.toPath(), target.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw error("Cannot write commit-graph.");
+        }
+    }
+
+    /**
+     * Build the graph from every commit in the object store, write it to a
+     * temporary file and rename it over GRAPH_FILE, so a crash never leaves
+     * a partial graph. The lookup is written when the graph is next loaded.
+     */
+    private static void build() {
+        HashMap<String, Commit> commits = new HashMap<>();
+        for (String id : ObjectStore.ids(ObjectStore.Kind.COMMIT)) {
+            commits.put(id, Repository.readCommitFromFile(id));
+        }
+        HashMap<String, Integer> positions = new HashMap<>();
+        ArrayList<Integer> generations = new ArrayList<>();
+        File temp = join(Repository.GITLET_DIR, GRAPH_FILE.getName() + ".tmp");
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(temp.toPath()))) {
+            out.write(header());
+            for (String id : commits.keySet()) {
+                addWithAncestors(id, commits, positions, generations, out);
+            }
+        } catch (IOException e) {
+            throw error("Cannot write commit-graph.");
+        }
+        LOOKUP_FILE.delete();
+        install(temp, GRAPH_FILE);
+    }
+
+    /**
+     * Write the record of a commit after those of all of its ancestors, without
+     * recursion so that long histories do not overflow the stack.
+     */
+    private static void addWithAncestors(String id, HashMap<String, Commit> commits,
+                                         HashMap<String, Integer> positions,
+                                         ArrayList<Integer> generations, OutputStream out)
+            throws IOException {
+        ArrayList<String> stack = new ArrayList<>();
+        stack.add(id);
+        while (!stack.isEmpty()) {
+            String top = stack.get(stack.size() - 1);
+            if (positions.containsKey(top)) {
+                stack.remove(stack.size() - 1);
+                continue;
+            }
+            Commit c = commits.get(top);
+            boolean ready = true;
+            if (c.getParentCommitIDs() != null) {
+                for (String p : c.getParentCommitIDs()) {
+                    if (!positions.containsKey(p)) {
+                        stack.add(p);
+                        ready = false;
+                    }
+                }
+            }
+            if (ready) {
+                stack.remove(stack.size() - 1);
+                int[] ps = parentPositions(c, positions::get);
+                int generation = 1;
+                for (int p : ps) {
+                    generation = Math.max(generation, generations.get(p) + 1);
+                }
+                out.write(record(top, c.getTimestamp().getTime(), generation, ps));
+                positions.put(top, generations.size());
+                generations.add(generation);
+            }
+        }
+    }
+
+    /**
+     * Get the positions of the parents of a commit, first parent first.
+     */
+    private static int[] parentPositions(Commit c, Function<String, Integer> position) {
+        List<String> parentIDs = c.getParentCommitIDs();
+        int[] ps = new int[parentIDs == null ? 0 : parentIDs.size()];
+        if (ps.length > 2) {
+            throw error("Cannot write commit-graph.");
+        }
+        for (int k = 0; k < ps.length; k += 1) {
+            ps[k] = position.apply(parentIDs.get(k));
+        }
+        return ps;
+    }
+
+    /**
+     * Add a new commit whose parents are already in the graph,
+     * and append its record to GRAPH_FILE.
+     *
+     * @param id The commit id.
+     * @param c  The Commit object.
+     */
+    public void add(String id, Commit c) {
+        if (find(id) >= 0) {
+            return;
+        }
+        if (c.getParentCommitIDs() != null) {
+            for (String p : c.getParentCommitIDs()) {
+                position(p);
+            }
+        }
+        int[] ps = parentPositions(c, this::find);
+        int generation = 1;
+        for (int p : ps) {
+            generation = Math.max(generation, generation(p) + 1);
+        }
+        Journal.appendSynced(GRAPH_FILE, record(id, c.getTimestamp().getTime(), generation, ps));
+        tail.put(id, size);
+        size += 1;
+        records = map(GRAPH_FILE);
+        if (tail.size() >= TAIL_LIMIT) {
+            writeLookup();
+        }
+    }
+
+    /**
+     * Encode the file header.
+     */
+    private static byte[] header() {
+        return ByteBuffer.allocate(HEADER).put(MAGIC).putInt(VERSION).array();
+    }
+
+    /**
+     * Encode the record of a commit.
+     */
+    private static byte[] record(String id, long timestamp, int generation, int[] ps) {
+        return ByteBuffer.allocate(RECORD).put(hexToBytes(id)).putLong(timestamp)
+                .putInt(generation)
+                .putInt(ps.length > 0 ? ps[0] : -1)
+                .putInt(ps.length > 1 ? ps[1] : -1)
+                .array();
+    }
+
+    /**
+     * Find the position of a commit already in the graph, in the tail
+     * or by a binary search of the lookup inside the fan-out bucket of its first byte.
+     *
+     * @return The position, or -1 if the commit is not in the graph.
+     */
+    private int find(String id) {
+        Integer t = tail.get(id);
+        if (t != null) {
+            return t;
+        }
+        byte[] key = hexToBytes(id);
+        int first = key[0] & 0xff;
+        int lo = first == 0 ? 0 : lookup.getInt(12 + (first - 1) * 4);
+        int hi = lookup.getInt(12 + first * 4);
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = compareKey(LOOKUP_HEADER + mid * LOOKUP_ENTRY, key);
+            if (cmp < 0) {
+                lo = mid + 1;
+            } else if (cmp > 0) {
+                hi = mid;
+            } else {
+                return lookup.getInt(LOOKUP_HEADER + mid * LOOKUP_ENTRY + 20);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Compare the raw id at an offset of the lookup with a key, as unsigned bytes.
+     */
+    private int compareKey(int offset, byte[] key) {
+        for (int i = 0; i < key.length; i += 1) {
+            int cmp = Integer.compare(lookup.get(offset + i) & 0xff, key[i] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Get the position of a commit, adding it and its missing ancestors
+     * if the commit was written without updating the graph.
+     *
+     * @param id The commit id.
+     * @return The position, or -1 if there is no such commit.
+     */
+    public int position(String id) {
+        int i = find(id);
+        if (i >= 0) {
+            return i;
+        }
+        Commit c = Repository.readCommitFromFile(id);
+        if (c == null) {
+            return -1;
+        }
+        add(id, c);
+        return find(id);
+    }
+
+    /**
+     * Getter method for the commit id at a position.
+     */
+    public String id(int i) {
+        byte[] raw = new byte[20];
+        records.get(HEADER + i * RECORD, raw);
+        return bytesToHex(raw);
+    }
+
+    /**
+     * Getter method for the timestamp at a position.
+     */
+    public long timestamp(int i) {
+        return records.getLong(HEADER + i * RECORD + 20);
+    }
+
+    /**
+     * Getter method for the generation number at a position.
+     */
+    public int generation(int i) {
+        return records.getInt(HEADER + i * RECORD + 28);
+    }
+
+    /**
+     * Getter method for the parent positions at a position, first parent first.
+     */
+    public int[] parents(int i) {
+        int first = records.getInt(HEADER + i * RECORD + 32);
+        int second = records.getInt(HEADER + i * RECORD + 36);
+        if (first < 0) {
+            return new int[0];
+        }
+        return second < 0 ? new int[]{first} : new int[]{first, second};
+    }
+
+    /**
+     * Getter method for the number of commits in the graph.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Find the best common ancestor of two commits.
+     *
+     * Both commits paint their ancestors while a queue visits commits
+     * from the highest generation number down. The first commit painted by both
+     * is a common ancestor; everything below it is marked stale, and the walk
+     * stops as soon as only stale commits are left in the queue, so history
+     * older than the merge base is never visited.
+     *
+     * @param id1 The first commit id.
+     * @param id2 The second commit id.
+     * @return The id of the latest common ancestor, or null if there is none.
+     */
+    public String mergeBase(String id1, String id2) {
+        int a = position(id1);
+        int b = position(id2);
+        if (a == b) {
+            return id1;
+        }
+        HashMap<Integer, Integer> flags = new HashMap<>();
+        TreeSet<Integer> queue = new TreeSet<>(this::compareNewestFirst);
+        flags.put(a, (int) PARENT1);
+        flags.put(b, (int) PARENT2);
+        queue.add(a);
+        queue.add(b);
+        int nonStale = 2;
+        int best = -1;
+
+        while (nonStale > 0) {
+            int c = queue.pollFirst();
+            int f = flags.get(c);
+            if ((f & STALE) == 0) {
+                nonStale -= 1;
+            }
+            if ((f & (PARENT1 | PARENT2 | STALE)) == (PARENT1 | PARENT2)) {
+                if (best < 0) {
+                    best = c;
+                }
+                f |= STALE;
+                flags.put(c, f);
+            }
+            for (int p : parents(c)) {
+                int old = flags.getOrDefault(p, 0);
+                int now = old | f;
+                if (now == old) {
+                    continue;
+                }
+                if (queue.contains(p) && (old & STALE) == 0) {
+                    nonStale -= 1;
+                }
+                flags.put(p, now);
+                queue.add(p);
+                if ((now & STALE) == 0) {
+                    nonStale += 1;
+                }
+            }
+        }
+        return best < 0 ? null : id(best);
+    }
+
+    /**
+     * Check whether one commit is an ancestor of another, or the same commit.
+     *
+     * The walk goes down from the descendant, highest generation number first,
+     * and never visits a commit whose generation number is not above the one
+     * of the ancestor, since such a commit cannot reach it. So the walk stops
+     * at the generation of the ancestor instead of the root of the history,
+     * and an ancestor that is near the descendant is found after a few steps.
+     *
+     * @param ancestorID   The id of the possible ancestor.
+     * @param descendantID The id of the possible descendant.
+     * @return True if ancestorID is reachable from descendantID.
+     */
+    public boolean isAncestor(String ancestorID, String descendantID) {
+        int a = position(ancestorID);
+        int d = position(descendantID);
+        if (a == d) {
+            return true;
+        }
+        int floor = generation(a);
+        if (generation(d) <= floor) {
+            return false;
+        }
+        BitSet seen = new BitSet(size());
+        PriorityQueue<Integer> queue = new PriorityQueue<>(
+                (x, y) -> Integer.compare(generation(y), generation(x)));
+        seen.set(d);
+        queue.add(d);
+        while (!queue.isEmpty()) {
+            for (int p : parents(queue.poll())) {
+                if (p == a) {
+                    return true;
+                }
+                if (!seen.get(p) && generation(p) > floor) {
+                    seen.set(p);
+                    queue.add(p);
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Iterate over every commit in the graph, newest timestamp first.
+     *
+     * This is a k-way merge of the histories of all tips, the commits
+     * no other commit has as a parent: branch heads as well as commits left
+     * dangling by reset. A priority queue holds only the next commit of each
+     * history, and a commit is added when its first child is emitted,
+     * so commits are produced lazily with memory bounded by the number of tips
+     * and one bit per commit.
+     *
+     * @return The positions of all commits, newest first.
+     */
+    public Iterator<Integer> newestFirst() {
+        BitSet hasChild = new BitSet(size());
+        for (int i = 0; i < size(); i += 1) {
+            for (int p : parents(i)) {
+                hasChild.set(p);
+            }
+        }
+        PriorityQueue<Integer> queue = new PriorityQueue<>(this::compareByTimestamp);
+        for (int i = hasChild.nextClearBit(0); i < size(); i = hasChild.nextClearBit(i + 1)) {
+            queue.add(i);
+        }
+
+        return new Iterator<>() {
+            /* Commits that were added to the queue as a parent. */
+            private final BitSet seen = new BitSet(size());
+
+            @Override
+            public boolean hasNext() {
+                return !queue.isEmpty();
+            }
+
+            @Override
+            public Integer next() {
+                if (queue.isEmpty()) {
+                    throw new NoSuchElementException();
+                }
+                int c = queue.poll();
+                for (int p : parents(c)) {
+                    if (!seen.get(p)) {
+                        seen.set(p);
+                        queue.add(p);
+                    }
+                }
+                return c;
+            }
+        };
+    }
+
+    /**
+     * Order positions by timestamp, newest first,
+     * and by position to tell apart commits made in the same millisecond.
+     */
+    int compareByTimestamp(int x, int y) {
+        int cmp = Long.compare(timestamp(y), timestamp(x));
+        return cmp != 0 ? cmp : Integer.compare(y, x);
+    }
+
+    /**
+     * Order positions by generation number, then timestamp, newest first,
+     * and by position to tell apart commits made in the same millisecond.
+     */
+    int compareNewestFirst(int x, int y) {
+        int cmp = Integer.compare(generation(y), generation(x));
+        if (cmp == 0) {
+            cmp = Long.compare(timestamp(y), timestamp(x));
+        }
+        return cmp != 0 ? cmp : Integer.compare(y, x);
+    }
+}
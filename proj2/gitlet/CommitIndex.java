@@ -0,0 +1,269 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+
+import static gitlet.Utils.*;
+
+/**
+ * A sorted index of all commit ids, used to resolve abbreviated ids
+ * without listing the commits directory.
+ *
+ * The file starts with the magic "GCID", a version number, the number of ids
+ * and a 256-entry fan-out table (the number of ids whose first byte is less than
+ * or equal to i), followed by the 20-byte raw ids in sorted order.
+ * A prefix is resolved by a binary search inside its fan-out bucket.
+ *
+ * Rewriting the sorted file for every commit would cost I/O in the number
+ * of commits, so new ids are appended as raw 20-byte records to a small
+ * unsorted tail file, which is searched linearly. Once it holds TAIL_LIMIT
+ * ids, and at every gc, the tail is merged into the sorted file.
+ *
+ * @author Guang Hou
+ */
+public class CommitIndex {
+    /* The .gitlet/commit-ids file. */
+    static final File INDEX_FILE = join(Repository.GITLET_DIR, "commit-ids");
+    /* The .gitlet/commit-ids-tail file of the ids added since the last merge. */
+    static final File TAIL_FILE = join(Repository.GITLET_DIR, "commit-ids-tail");
+    /* The number of ids in the tail that makes it merged into the sorted file. */
+    private static final int TAIL_LIMIT = 1024;
+    /* Magic bytes at the start of the file. */
+    private static final byte[] MAGIC = {'G', 'C', 'I', 'D'};
+    /* The only format version written so far. */
+    private static final int VERSION = 1;
+    /* Size of the header: magic, version, count and the fan-out table. */
+    private static final int HEADER = 12 + 256 * 4;
+
+    /* The memory-mapped index file. */
+    private MappedByteBuffer index;
+    /* The number of ids in the index. */
+    private int count;
+    /* The ids of the tail file, in the order they were added. */
+    private final List<String> tail = new ArrayList<>();
+
+    /* The index of this repository, loaded on first use. */
+    private static CommitIndex commitIndex;
+
+    /**
+     * Get the commit id index, building it from all commits if the file does not exist yet.
+     *
+     * @return The CommitIndex object.
+     */
+    public static CommitIndex get() {
+        if (commitIndex == null) {
+            if (!INDEX_FILE.isFile()) {
+                write(ObjectStore.ids(ObjectStore.Kind.COMMIT));
+            }
+            commitIndex = new CommitIndex();
+            commitIndex.map();
+            commitIndex.readTail();
+        }
+        return commitIndex;
+    }
+
+    /**
+     * Forget the loaded index, so the next use maps INDEX_FILE again.
+     */
+    static void reset() {
+        commitIndex = null;
+    }
+
+    /**
+     * Map INDEX_FILE into memory.
+     */
+    private void map() {
+        try (FileChannel ch = FileChannel.open(INDEX_FILE.toPath(), StandardOpenOption.READ)) {
+            index = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+        } catch (IOException e) {
+            throw error("Cannot read commit id index.");
+        }
+        for (int i = 0; i < MAGIC.length; i += 1) {
+            if (index.get(i) != MAGIC[i]) {
+                throw error("Corrupt commit id index.");
+            }
+        }
+        count = index.getInt(8);
+    }
+
+    /**
+     * Read the ids of TAIL_FILE. A record cut short by a crash is ignored.
+     */
+    private void readTail() {
+        if (!TAIL_FILE.isFile()) {
+            return;
+        }
+        byte[] records = readContents(TAIL_FILE);
+        byte[] raw = new byte[20];
+        for (int i = 0; i + 20 <= records.length; i += 20) {
+            System.arraycopy(records, i, raw, 0, 20);
+            tail.add(bytesToHex(raw));
+        }
+    }
+
+    /**
+     * Write a new index file from sorted ids, replacing the tail too.
+     *
+     * @param sortedIDs The commit ids in sorted order.
+     */
+    static void write(List<String> sortedIDs) {
+        int[] fanout = new int[256];
+        for (String id : sortedIDs) {
+            fanout[Integer.parseInt(id.substring(0, 2), 16)] += 1;
+        }
+        File temp = join(Repository.GITLET_DIR, INDEX_FILE.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(temp.toPath())))) {
+            writeHeader(out, sortedIDs.size(), fanout);
+            for (String id : sortedIDs) {
+                out.write(hexToBytes(id));
+            }
+        } catch (IOException e) {
+            throw error("Cannot write commit id index.");
+        }
+        install(temp);
+        // Ids left in the tail by a crash here are also in the new file, and found once.
+        TAIL_FILE.delete();
+        commitIndex = null;
+    }
+
+    /**
+     * Write the magic, version, count and cumulative fan-out table.
+     */
+    private static void writeHeader(DataOutputStream out, int n, int[] bucketSizes)
+            throws IOException {
+        out.write(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(n);
+        int total = 0;
+        for (int size : bucketSizes) {
+            total += size;
+            out.writeInt(total);
+        }
+    }
+
+    /**
+     * Replace INDEX_FILE by the temporary file.
+     */
+    private static void install(File temp) {
+        try {
+            Files.move(temp.toPath(), INDEX_FILE.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw error("Cannot write commit id index.");
+        }
+    }
+
+    /**
+     * Add a new commit id by appending it to the tail, and merge the tail
+     * into the sorted file once it is TAIL_LIMIT ids long.
+     *
+     * @param id The new commit id.
+     */
+    public void add(String id) {
+        int pos = lowerBound(id);
+        if (pos < count && idAt(pos).equals(id) || tail.contains(id)) {
+            return;
+        }
+        Journal.appendSynced(TAIL_FILE, hexToBytes(id));
+        tail.add(id);
+        if (tail.size() >= TAIL_LIMIT) {
+            merge();
+        }
+    }
+
+    /**
+     * Merge the tail into the sorted file. The next get maps the new file.
+     */
+    public void merge() {
+        if (tail.isEmpty()) {
+            return;
+        }
+        TreeSet<String> ids = new TreeSet<>(tail);
+        for (int i = 0; i < count; i += 1) {
+            ids.add(idAt(i));
+        }
+        write(new ArrayList<>(ids));
+    }
+
+    /**
+     * Find all commit ids starting with the prefix, stopping after limit matches.
+     *
+     * @param prefix The abbreviated id in hexadecimal.
+     * @param limit  The largest number of matches wanted.
+     * @return The full ids that start with the prefix, in sorted order.
+     */
+    public List<String> resolve(String prefix, int limit) {
+        List<String> result = new ArrayList<>();
+        String p = prefix.toLowerCase();
+        if (p.isEmpty() || p.length() > UID_LENGTH || !p.matches("[0-9a-f]+")) {
+            return result;
+        }
+        // The sorted matches of the file and of the tail, without the ids in both.
+        TreeSet<String> matches = new TreeSet<>();
+        for (int i = lowerBound(p); i < count && matches.size() < limit; i += 1) {
+            String id = idAt(i);
+            if (!id.startsWith(p)) {
+                break;
+            }
+            matches.add(id);
+        }
+        for (String id : tail) {
+            if (id.startsWith(p)) {
+                matches.add(id);
+            }
+        }
+        for (String id : matches) {
+            if (result.size() == limit) {
+                break;
+            }
+            result.add(id);
+        }
+        return result;
+    }
+
+    /**
+     * Find the first position whose id is not less than the key,
+     * searching only the fan-out bucket(s) that can hold it.
+     */
+    private int lowerBound(String key) {
+        int lo;
+        int hi;
+        if (key.length() >= 2) {
+            int first = Integer.parseInt(key.substring(0, 2), 16);
+            lo = first == 0 ? 0 : index.getInt(12 + (first - 1) * 4);
+            hi = index.getInt(12 + first * 4);
+        } else {
+            lo = 0;
+            hi = count;
+        }
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (idAt(mid).compareTo(key) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Getter method for the id at a position.
+     */
+    private String idAt(int i) {
+        byte[] raw = new byte[20];
+        index.get(HEADER + i * 20, raw);
+        return bytesToHex(raw);
+    }
+}
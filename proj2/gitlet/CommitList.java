@@ -0,0 +1,212 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import static gitlet.Utils.*;
+
+/**
+ * Every commit id sorted by date, used by global-log when there is no commit-graph.
+ *
+ * The file starts with the magic "GCLS" and a version number, followed by
+ * one record per commit: 8-byte timestamp and 20-byte raw id, oldest first.
+ * New commits are almost always the newest, so they are appended;
+ * global-log reads the records from the end.
+ *
+ * @author Guang Hou
+ */
+public class CommitList {
+    /* The .gitlet/commit-list file. */
+    static final File LIST_FILE = join(Repository.GITLET_DIR, "commit-list");
+    /* Magic bytes at the start of the file. */
+    private static final byte[] MAGIC = {'G', 'C', 'L', 'S'};
+    /* The only format version written so far. */
+    private static final int VERSION = 1;
+    /* Size of the header: magic and version. */
+    private static final int HEADER = 8;
+    /* Size of one record: timestamp and id. */
+    private static final int RECORD = 28;
+
+    /**
+     * Add a new commit to the list, building the list from all commits if it does not exist.
+     *
+     * @param id        The commit id.
+     * @param timestamp The commit timestamp in milliseconds.
+     */
+    public static void add(String id, long timestamp) {
+        if (!LIST_FILE.isFile()) {
+            // The commit is already stored, so building the list includes it.
+            build();
+            return;
+        }
+        long size = LIST_FILE.length();
+        if ((size - HEADER) % RECORD != 0) {
+            // A record cut short by a crash: write the list again.
+            build();
+            return;
+        }
+        long last = size > HEADER ? map().getLong((int) size - RECORD) : Long.MIN_VALUE;
+        if (timestamp >= last) {
+            Journal.appendSynced(LIST_FILE, record(timestamp, id));
+            return;
+        }
+
+        // A commit older than the last one, after a change of the clock: insert it in place.
+        MappedByteBuffer list = map();
+        int count = (int) ((size - HEADER) / RECORD);
+        long[] timestamps = new long[count + 1];
+        String[] ids = new String[count + 1];
+        int j = 0;
+        for (int i = 0; i < count; i += 1) {
+            if (j == i && list.getLong(HEADER + i * RECORD) > timestamp) {
+                timestamps[j] = timestamp;
+                ids[j] = id;
+                j += 1;
+            }
+            timestamps[j] = list.getLong(HEADER + i * RECORD);
+            ids[j] = idAt(list, i);
+            j += 1;
+        }
+        write(timestamps, ids);
+    }
+
+    /**
+     * Build the list from the commit-graph, or from every commit if there is no graph.
+     */
+    private static void build() {
+        List<Long> timestamps = new ArrayList<>();
+        List<String> ids = new ArrayList<>();
+        if (CommitGraph.GRAPH_FILE.isFile()) {
+            CommitGraph graph = CommitGraph.get();
+            for (int i = 0; i < graph.size(); i += 1) {
+                timestamps.add(graph.timestamp(i));
+                ids.add(graph.id(i));
+            }
+        } else {
+            for (String id : ObjectStore.ids(ObjectStore.Kind.COMMIT)) {
+                timestamps.add(Repository.readCommitFromFile(id).getTimestamp().getTime());
+                ids.add(id);
+            }
+        }
+        Integer[] order = new Integer[ids.size()];
+        for (int i = 0; i < order.length; i += 1) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (x, y) -> Long.compare(timestamps.get(x), timestamps.get(y)));
+        long[] sortedTimestamps = new long[order.length];
+        String[] sortedIDs = new String[order.length];
+        for (int i = 0; i < order.length; i += 1) {
+            sortedTimestamps[i] = timestamps.get(order[i]);
+            sortedIDs[i] = ids.get(order[i]);
+        }
+        write(sortedTimestamps, sortedIDs);
+    }
+
+    /**
+     * Write a new list file from records sorted oldest first.
+     */
+    private static void write(long[] timestamps, String[] ids) {
+        File temp = join(Repository.GITLET_DIR, LIST_FILE.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(temp.toPath())))) {
+            out.write(MAGIC);
+            out.writeInt(VERSION);
+            for (int i = 0; i < ids.length; i += 1) {
+                out.write(record(timestamps[i], ids[i]));
+            }
+        } catch (IOException e) {
+            throw error("Cannot write commit list.");
+        }
+        try {
+            Files.move(temp.toPath(), LIST_FILE.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw error("Cannot write commit list.");
+        }
+    }
+
+    /**
+     * Iterate over the commit ids in the list, newest first.
+     *
+     * @return The commit ids, newest first.
+     */
+    public static Iterator<String> newestFirst() {
+        if (!LIST_FILE.isFile()) {
+            build();
+        }
+        MappedByteBuffer list = map();
+        return new Iterator<>() {
+            /* The position of the next record to return. */
+            private int next = (list.capacity() - HEADER) / RECORD - 1;
+
+            @Override
+            public boolean hasNext() {
+                return next >= 0;
+            }
+
+            @Override
+            public String next() {
+                if (next < 0) {
+                    throw new NoSuchElementException();
+                }
+                String id = idAt(list, next);
+                next -= 1;
+                return id;
+            }
+        };
+    }
+
+    /**
+     * Encode one record.
+     */
+    private static byte[] record(long timestamp, String id) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeLong(timestamp);
+            out.write(hexToBytes(id));
+        } catch (IOException e) {
+            throw error("Cannot write commit list.");
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Map LIST_FILE into memory, checking its header.
+     */
+    private static MappedByteBuffer map() {
+        MappedByteBuffer list;
+        try (FileChannel ch = FileChannel.open(LIST_FILE.toPath(), StandardOpenOption.READ)) {
+            list = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+        } catch (IOException e) {
+            throw error("Cannot read commit list.");
+        }
+        for (int i = 0; i < MAGIC.length; i += 1) {
+            if (list.get(i) != MAGIC[i]) {
+                throw error("Corrupt commit list.");
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Getter method for the id of the record at a position.
+     */
+    private static String idAt(MappedByteBuffer list, int i) {
+        byte[] raw = new byte[20];
+        list.get(HEADER + i * RECORD + 8, raw);
+        return bytesToHex(raw);
+    }
+}
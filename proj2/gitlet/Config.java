@@ -0,0 +1,92 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.Properties;
+
+import static gitlet.Utils.*;
+
+/**
+ * Repository settings stored as key=value lines in .gitlet/config.
+ *
+ * @author Guang Hou
+ */
+public class Config {
+    /* The .gitlet/config file. */
+    static final File CONFIG_FILE = join(Repository.GITLET_DIR, "config");
+
+    /* The settings, loaded on first use. */
+    private static Properties settings;
+
+    /**
+     * Load the settings from CONFIG_FILE if they are not loaded yet.
+     */
+    private static Properties settings() {
+        if (settings == null) {
+            settings = new Properties();
+            if (CONFIG_FILE.isFile()) {
+                try (InputStream in = Files.newInputStream(CONFIG_FILE.toPath())) {
+                    settings.load(in);
+                } catch (IOException e) {
+                    throw error("Cannot read config.");
+                }
+            }
+        }
+        return settings;
+    }
+
+    /**
+     * Forget the loaded settings, so the next use reads CONFIG_FILE again.
+     */
+    static void reset() {
+        settings = null;
+    }
+
+    /**
+     * Get a setting.
+     *
+     * @param key          The setting name.
+     * @param defaultValue The value to use if the setting is absent.
+     * @return The setting value.
+     */
+    public static String get(String key, String defaultValue) {
+        return settings().getProperty(key, defaultValue);
+    }
+
+    /**
+     * Get a numeric setting.
+     *
+     * @param key          The setting name.
+     * @param defaultValue The value to use if the setting is absent or not a number.
+     * @return The setting value.
+     */
+    public static long getLong(String key, long defaultValue) {
+        try {
+            return Long.parseLong(get(key, String.valueOf(defaultValue)).trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Change a setting and write all settings back to CONFIG_FILE through the
+     * Journal, so a crash leaves either the old or the new file, never a torn one.
+     *
+     * @param key   The setting name.
+     * @param value The new value.
+     */
+    public static void set(String key, String value) {
+        settings().setProperty(key, value);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            settings.store(out, null);
+        } catch (IOException e) {
+            throw error("Cannot write config.");
+        }
+        Journal.commit(Map.of(CONFIG_FILE, out.toByteArray()));
+    }
+}
@@ -0,0 +1,236 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static gitlet.Utils.*;
+
+/**
+ * The gitlet daemon started by `gitlet serve`, and its client.
+ *
+ * The daemon listens on the Unix-domain socket .gitlet/daemon.sock and runs
+ * the commands sent to it one after another in the same JVM, so the repository
+ * state, the commit and blob caches, the commit-graph and the stat cache stay
+ * in memory between commands. A request is the arguments of one command, each
+ * followed by a NUL byte, and ends when the client shuts down its side of
+ * the connection; the reply is the output of the command, and ends when
+ * the daemon closes the connection. Any tool can be a client, for example
+ * printf '%s\0' "$@" | nc -UN .gitlet/daemon.sock
+ *
+ * Before each command the daemon takes the repository lock and compares
+ * the state files with what they were after its last command. If another
+ * process changed them, every cache is dropped and read again.
+ *
+ * @author Guang Hou
+ */
+public class Daemon {
+    /* The socket file, relative to the working directory to stay within the path limit. */
+    static final File SOCKET_FILE = new File(".gitlet", "daemon.sock");
+    /* The files whose attributes tell whether another process changed the repository. */
+    private static final File[] WATCHED_FILES = {
+        Repository.BRANCHES_FILE, Repository.HEAD_FILE, Repository.ACTIVE_BRANCH_FILE,
+        Repository.ADD_FILE, Repository.RM_FILE, StatIndex.INDEX_FILE, Config.CONFIG_FILE,
+        CommitGraph.GRAPH_FILE, CommitGraph.LOOKUP_FILE, CommitIndex.INDEX_FILE,
+        CommitIndex.TAIL_FILE, ObjectStore.PACK_DIR,
+    };
+
+    /* The attributes of WATCHED_FILES after the last command, or null before the first. */
+    private static List<String> lastSeen;
+    /* Whether a client asked the daemon to stop. */
+    private static boolean stopping;
+
+    /**
+     * Serve commands until a client sends `serve --stop`.
+     */
+    public static void serve() {
+        if (!Repository.GITLET_DIR.exists()) {
+            throw error("Not in an initialized Gitlet directory.");
+        }
+        if (SOCKET_FILE.exists()) {
+            boolean running;
+            try {
+                connect().close();
+                running = true;
+            } catch (IOException e) {
+                running = false;
+            }
+            if (running) {
+                throw error("A gitlet daemon is already running.");
+            }
+            // Left by a daemon that was killed.
+            SOCKET_FILE.delete();
+        }
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(SOCKET_FILE.toPath()));
+            Runtime.getRuntime().addShutdownHook(new Thread(SOCKET_FILE::delete));
+            while (!stopping) {
+                SocketChannel client = server.accept();
+                try (client) {
+                    handle(client);
+                } catch (IOException e) {
+                    // A client that went away mid-request only loses its own connection.
+                }
+            }
+        } catch (IOException e) {
+            throw error("Cannot serve the repository.");
+        } finally {
+            SOCKET_FILE.delete();
+        }
+    }
+
+    /**
+     * Run the command of one request, sending its output to the client.
+     */
+    private static void handle(SocketChannel client) throws IOException {
+        String[] args = readRequest(Channels.newInputStream(client));
+        PrintStream stdout = System.out;
+        PrintStream reply = new PrintStream(new BufferedOutputStream(
+                Channels.newOutputStream(client), 1 << 16), false);
+        System.setOut(reply);
+        try {
+            if (args.length == 2 && args[0].equals("serve") && args[1].equals("--stop")) {
+                stopping = true;
+            } else {
+                runLocked(args);
+            }
+        } finally {
+            reply.flush();
+            System.setOut(stdout);
+        }
+    }
+
+    /**
+     * Run one command under the repository lock, first dropping the caches
+     * if another process changed the repository since the last command.
+     */
+    private static void runLocked(String[] args) {
+        if (!Repository.GITLET_DIR.exists()) {
+            // Deleted under the daemon: let the command report it.
+            dropCaches();
+            Main.runAndReport(args);
+            return;
+        }
+        Journal.lock();
+        try {
+            if (!attributes().equals(lastSeen)) {
+                dropCaches();
+            }
+            Main.run(args);
+        } catch (GitletException e) {
+            // The command stopped before flushing, so its changes are not on disk.
+            RepoContext.get().discardChanges();
+            System.out.println(e.getMessage());
+        } catch (RuntimeException e) {
+            // The client gets one line, as it would from a failing command run alone.
+            dropCaches();
+            System.out.println(e.getMessage() != null ? e.getMessage() : e.toString());
+        } finally {
+            lastSeen = attributes();
+            Journal.unlock();
+        }
+    }
+
+    /**
+     * Forget everything read from the repository.
+     */
+    private static void dropCaches() {
+        RepoContext.reset();
+        CommitCache.clear();
+        CommitGraph.reset();
+        CommitIndex.reset();
+        ObjectStore.reset();
+        Config.reset();
+    }
+
+    /**
+     * Get the identity, size and modification time of each watched file.
+     * Files are replaced by renames, so a new identity shows a new version.
+     */
+    private static List<String> attributes() {
+        List<String> result = new ArrayList<>();
+        for (File f : WATCHED_FILES) {
+            try {
+                BasicFileAttributes a = Files.readAttributes(f.toPath(), BasicFileAttributes.class);
+                result.add(a.fileKey() + " " + a.size() + " " + a.lastModifiedTime());
+            } catch (IOException e) {
+                result.add("-");
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Send a command to the daemon of the repository in the working directory
+     * and copy its output to stdout.
+     *
+     * @param args The command arguments.
+     * @return False if no daemon is running, so the command has to run here.
+     */
+    public static boolean forward(String[] args) {
+        if (!SOCKET_FILE.exists()) {
+            return false;
+        }
+        SocketChannel daemon;
+        try {
+            daemon = connect();
+        } catch (IOException e) {
+            return false;
+        }
+        try (daemon) {
+            ByteArrayOutputStream request = new ByteArrayOutputStream();
+            for (String arg : args) {
+                byte[] bytes = arg.getBytes(StandardCharsets.UTF_8);
+                request.write(bytes, 0, bytes.length);
+                request.write(0);
+            }
+            OutputStream out = Channels.newOutputStream(daemon);
+            out.write(request.toByteArray());
+            out.flush();
+            daemon.shutdownOutput();
+            Channels.newInputStream(daemon).transferTo(System.out);
+            System.out.flush();
+        } catch (IOException e) {
+            throw error("Lost the connection to the gitlet daemon.");
+        }
+        return true;
+    }
+
+    /**
+     * Connect to the socket of the daemon.
+     */
+    private static SocketChannel connect() throws IOException {
+        return SocketChannel.open(UnixDomainSocketAddress.of(SOCKET_FILE.toPath()));
+    }
+
+    /**
+     * Read the NUL-terminated arguments of a request up to the end of the stream.
+     */
+    private static String[] readRequest(InputStream in) throws IOException {
+        byte[] bytes = in.readAllBytes();
+        List<String> args = new ArrayList<>();
+        int start = 0;
+        for (int i = 0; i < bytes.length; i += 1) {
+            if (bytes[i] == 0) {
+                args.add(new String(Arrays.copyOfRange(bytes, start, i), StandardCharsets.UTF_8));
+                start = i + 1;
+            }
+        }
+        return args.toArray(new String[0]);
+    }
+}
@@ -0,0 +1,245 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static gitlet.Utils.*;
+
+/**
+ * Binary deltas between two versions of a file.
+ *
+ * A delta starts with the magic "GDLT", the 20-byte raw hash of the base blob,
+ * one byte for the chain depth and the varint length of the target,
+ * followed by instructions. An instruction is either
+ * COPY (varint offset, varint length into the base) or
+ * INSERT (varint length, then the literal bytes).
+ * Matches are found by indexing fixed-size blocks of the base
+ * and rolling a hash of the same size over the target.
+ *
+ * @author Guang Hou
+ */
+public class Delta {
+    /* Magic bytes at the start of a delta. */
+    private static final byte[] MAGIC = {'G', 'D', 'L', 'T'};
+    /* Size of the header: magic, base hash and depth. */
+    private static final int HEADER = MAGIC.length + 20 + 1;
+    /* Instruction code to copy a range of the base. */
+    private static final int COPY = 0;
+    /* Instruction code to insert literal bytes. */
+    private static final int INSERT = 1;
+    /* The block size used to find matches. */
+    private static final int BLOCK = 16;
+    /* Multiplier of the rolling hash. */
+    private static final int PRIME = 31;
+
+    /**
+     * Compute the delta that turns base into target.
+     *
+     * @param baseID The hash of the base blob, recorded in the header.
+     * @param depth  The chain depth of the new delta.
+     * @param base   The base contents.
+     * @param target The target contents.
+     * @return The encoded delta.
+     */
+    public static byte[] create(String baseID, int depth, byte[] base, byte[] target) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(MAGIC, 0, MAGIC.length);
+        out.write(hexToBytes(baseID), 0, 20);
+        out.write(depth);
+        writeVarint(out, target.length);
+
+        // Index the start of each non-overlapping block of the base in an
+        // open-addressing table of ints, 8 to 16 bytes per block of 16,
+        // so a large base costs little more than its own size.
+        int count = base.length / BLOCK;
+        int capacity = Integer.highestOneBit(Math.max(1, count) * 2 - 1) << 1;
+        int[] blocks = new int[capacity];
+        Arrays.fill(blocks, -1);
+        for (int i = 0; i + BLOCK <= base.length; i += BLOCK) {
+            int h = hash(base, i);
+            int slot = slot(h, capacity);
+            while (blocks[slot] >= 0 && hash(base, blocks[slot]) != h) {
+                slot = (slot + 1) & (capacity - 1);
+            }
+            if (blocks[slot] < 0) {
+                blocks[slot] = i;
+            }
+        }
+
+        int power = 1;
+        for (int i = 0; i < BLOCK - 1; i += 1) {
+            power *= PRIME;
+        }
+
+        int pending = 0;
+        int pos = 0;
+        int h = target.length >= BLOCK ? hash(target, 0) : 0;
+        while (pos + BLOCK <= target.length) {
+            int candidate = find(blocks, base, h);
+            if (candidate >= 0 && regionEquals(base, candidate, target, pos, BLOCK)) {
+                int start = candidate;
+                int length = BLOCK;
+                // Extend backwards into the pending literal bytes, then forwards.
+                while (start > 0 && pos > pending && base[start - 1] == target[pos - 1]) {
+                    start -= 1;
+                    pos -= 1;
+                    length += 1;
+                }
+                while (start + length < base.length && pos + length < target.length
+                        && base[start + length] == target[pos + length]) {
+                    length += 1;
+                }
+                writeInsert(out, target, pending, pos);
+                out.write(COPY);
+                writeVarint(out, start);
+                writeVarint(out, length);
+                pos += length;
+                pending = pos;
+                if (pos + BLOCK <= target.length) {
+                    h = hash(target, pos);
+                }
+                continue;
+            }
+            if (pos + BLOCK < target.length) {
+                h = (h - target[pos] * power) * PRIME + target[pos + BLOCK];
+            }
+            pos += 1;
+        }
+        writeInsert(out, target, pending, target.length);
+        return out.toByteArray();
+    }
+
+    /**
+     * Rebuild the target contents from the base and a delta.
+     *
+     * @param base  The base contents.
+     * @param delta The encoded delta.
+     * @return The target contents.
+     */
+    public static byte[] apply(byte[] base, byte[] delta) {
+        ByteBuffer in = ByteBuffer.wrap(delta);
+        in.position(HEADER);
+        byte[] target = new byte[(int) readVarint(in)];
+        int out = 0;
+        while (in.hasRemaining()) {
+            int op = in.get();
+            int length;
+            if (op == COPY) {
+                int offset = (int) readVarint(in);
+                length = (int) readVarint(in);
+                System.arraycopy(base, offset, target, out, length);
+            } else if (op == INSERT) {
+                length = (int) readVarint(in);
+                in.get(target, out, length);
+            } else {
+                throw error("Corrupt delta.");
+            }
+            out += length;
+        }
+        if (out != target.length) {
+            throw error("Corrupt delta.");
+        }
+        return target;
+    }
+
+    /**
+     * Check whether the contents are a delta.
+     */
+    public static boolean isDelta(byte[] contents) {
+        if (contents.length < HEADER) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i += 1) {
+            if (contents[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Getter method for the base blob hash in the header of a delta.
+     */
+    public static String baseID(byte[] delta) {
+        byte[] raw = new byte[20];
+        System.arraycopy(delta, MAGIC.length, raw, 0, 20);
+        return bytesToHex(raw);
+    }
+
+    /**
+     * Getter method for the chain depth in the header of a delta.
+     */
+    public static int depth(byte[] delta) {
+        return delta[MAGIC.length + 20] & 0xff;
+    }
+
+    /**
+     * Getter method for the length of the target in the header of a delta.
+     */
+    public static long targetLength(byte[] delta) {
+        ByteBuffer in = ByteBuffer.wrap(delta);
+        in.position(HEADER);
+        return readVarint(in);
+    }
+
+    /**
+     * The polynomial hash of the block starting at offset.
+     */
+    private static int hash(byte[] data, int offset) {
+        int h = 0;
+        for (int i = offset; i < offset + BLOCK; i += 1) {
+            h = h * PRIME + data[i];
+        }
+        return h;
+    }
+
+    /**
+     * The first slot to probe for a block hash in a table of capacity slots.
+     */
+    private static int slot(int h, int capacity) {
+        return (h ^ (h >>> 16)) & (capacity - 1);
+    }
+
+    /**
+     * Find the first block of the base with the given hash.
+     *
+     * @param blocks The table of block offsets built by create, -1 for an empty slot.
+     * @param base   The base contents.
+     * @param h      The block hash.
+     * @return The offset of the block, or -1 if no block has that hash.
+     */
+    private static int find(int[] blocks, byte[] base, int h) {
+        int slot = slot(h, blocks.length);
+        while (blocks[slot] >= 0) {
+            if (hash(base, blocks[slot]) == h) {
+                return blocks[slot];
+            }
+            slot = (slot + 1) & (blocks.length - 1);
+        }
+        return -1;
+    }
+
+    /**
+     * Check whether two byte ranges of the same length are equal.
+     */
+    private static boolean regionEquals(byte[] a, int aFrom, byte[] b, int bFrom, int length) {
+        for (int i = 0; i < length; i += 1) {
+            if (a[aFrom + i] != b[bFrom + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Write an INSERT instruction for target[from, to) if it is not empty.
+     */
+    private static void writeInsert(ByteArrayOutputStream out, byte[] target, int from, int to) {
+        if (to > from) {
+            out.write(INSERT);
+            writeVarint(out, to - from);
+            out.write(target, from, to - from);
+        }
+    }
+}
@@ -0,0 +1,416 @@
+package gitlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+import static gitlet.Utils.*;
+
+/**
+ * Checks the integrity of the object store, like git fsck.
+ *
+ * Every stored copy of every object, loose or packed, is checked in
+ * parallel. Loose files and packs are memory-mapped, and an uncompressed
+ * blob or chunk is hashed straight from the mapping without being copied.
+ * An object must hash to its id: a commit, tree, blob or chunk by its stored
+ * contents, a blob stored as a delta or as chunks by the contents it rebuilds.
+ * The references of each object are collected on the way: the parents and
+ * files of commits, the entries of trees, the base of deltas and the chunks
+ * of chunk lists. Then a reference to an object the store does not have is
+ * reported missing, and an object nothing refers to, not even a branch,
+ * the head or the staging area, is reported dangling.
+ *
+ * @author Guang Hou
+ */
+public class Fsck {
+    /* Loose objects at least this large are memory-mapped rather than read. */
+    private static final long MAP_THRESHOLD = 64 * 1024;
+
+    /**
+     * The kinds of object a reference can point to.
+     * A blob may be stored in full, as a delta or as chunks.
+     */
+    private enum Target {
+        COMMIT, TREE, BLOB, CHUNK
+    }
+
+    /**
+     * One stored copy of an object.
+     */
+    private static class Source {
+        /* The object kind. */
+        private final ObjectStore.Kind kind;
+        /* The object id. */
+        private final String id;
+        /* The loose file, or null for a packed object. */
+        private final File loose;
+        /* The stored bytes of a packed object, or null for a loose one. */
+        private final ByteBuffer packed;
+
+        Source(ObjectStore.Kind kind, String id, File loose, ByteBuffer packed) {
+            this.kind = kind;
+            this.id = id;
+            this.loose = loose;
+            this.packed = packed;
+        }
+    }
+
+    /**
+     * What checking one stored copy found.
+     */
+    private static class Result {
+        /* The copy checked. */
+        private final Source source;
+        /* The number of stored bytes read. */
+        private long bytes;
+        /* Why the copy is corrupt, or null if it is sound. */
+        private String problem;
+        /* The objects the copy refers to. */
+        private final EnumMap<Target, List<String>> refs = new EnumMap<>(Target.class);
+
+        Result(Source source) {
+            this.source = source;
+        }
+
+        /**
+         * Record a reference to another object.
+         */
+        void refer(Target target, String id) {
+            refs.computeIfAbsent(target, t -> new ArrayList<>()).add(id);
+        }
+    }
+
+    /**
+     * Check every object and print the problems found, then the throughput.
+     *
+     * @param commitRoots The commits that branches and the head refer to.
+     * @param blobRoots   The blobs that the staging area refers to.
+     */
+    public static void check(Collection<String> commitRoots, Collection<String> blobRoots) {
+        long start = System.nanoTime();
+        List<Source> sources = sources();
+        List<Result> results = sources.parallelStream()
+                .map(Fsck::verify)
+                .collect(Collectors.toList());
+
+        // Every id the store has, by the kind of reference that can point to it.
+        EnumMap<Target, Set<String>> present = new EnumMap<>(Target.class);
+        for (Target t : Target.values()) {
+            present.put(t, new HashSet<>());
+        }
+        for (Source s : sources) {
+            present.get(target(s.kind)).add(s.id);
+        }
+
+        TreeSet<String> corrupt = new TreeSet<>();
+        TreeSet<String> missing = new TreeSet<>();
+        HashSet<String> referenced = new HashSet<>();
+        long bytes = 0;
+        Map<Target, Collection<String>> roots = new HashMap<>();
+        roots.put(Target.COMMIT, commitRoots);
+        roots.put(Target.BLOB, blobRoots);
+        follow(roots, true, present, referenced, missing);
+        for (Result r : results) {
+            bytes += r.bytes;
+            if (r.problem != null) {
+                corrupt.add(String.format("corrupt %s %s: %s",
+                        kindName(r.source.kind), r.source.id, r.problem));
+            }
+            follow(r.refs, r.problem == null, present, referenced, missing);
+        }
+        TreeSet<String> dangling = new TreeSet<>();
+        for (Source s : sources) {
+            if (!referenced.contains(s.id)) {
+                dangling.add(String.format("dangling %s %s", kindName(s.kind), s.id));
+            }
+        }
+
+        StringBuilder output = new StringBuilder();
+        for (TreeSet<String> lines : List.of(corrupt, missing, dangling)) {
+            for (String line : lines) {
+                output.append(line).append("\n");
+            }
+        }
+        double seconds = Math.max((System.nanoTime() - start) / 1e9, 1e-3);
+        double megabytes = bytes / (1024.0 * 1024.0);
+        output.append(String.format("Checked %d objects, %.1f MB in %.2f s (%.1f MB/s).",
+                sources.size(), megabytes, seconds, megabytes / seconds));
+        System.out.println(output);
+    }
+
+    /**
+     * Record the objects some references point to, and those missing.
+     * A corrupt object that decoded still keeps what it names from being
+     * reported dangling, but its references are not trusted to be missing.
+     *
+     * @param refs       The references, by the kind of object they point to.
+     * @param trusted    Whether the references come from a sound object.
+     * @param present    The ids the store has, by the kind of reference.
+     * @param referenced The ids referred to so far.
+     * @param missing    The lines reporting missing objects so far.
+     */
+    private static void follow(Map<Target, ? extends Collection<String>> refs, boolean trusted,
+                               Map<Target, Set<String>> present, Set<String> referenced,
+                               Set<String> missing) {
+        for (Map.Entry<Target, ? extends Collection<String>> e : refs.entrySet()) {
+            for (String id : e.getValue()) {
+                referenced.add(id);
+                if (trusted && !present.get(e.getKey()).contains(id)) {
+                    missing.add(String.format("missing %s %s",
+                            e.getKey().name().toLowerCase(), id));
+                }
+            }
+        }
+    }
+
+    /**
+     * List every stored copy of every object, mapping each pack once.
+     */
+    private static List<Source> sources() {
+        List<Source> result = new ArrayList<>();
+        for (ObjectStore.Kind kind : ObjectStore.Kind.values()) {
+            for (String id : ObjectStore.looseIDs(kind)) {
+                result.add(new Source(kind, id, join(kind.dir, id), null));
+            }
+        }
+        for (PackFile p : ObjectStore.packs()) {
+            ByteBuffer whole = null;
+            try (FileChannel ch = FileChannel.open(p.getPackFile().toPath(),
+                    StandardOpenOption.READ)) {
+                if (ch.size() <= Integer.MAX_VALUE) {
+                    whole = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+                }
+                for (int i = 0; i < p.size(); i += 1) {
+                    ByteBuffer stored = whole != null
+                            ? whole.slice((int) p.offsetAt(i), (int) p.lengthAt(i))
+                            : ch.map(FileChannel.MapMode.READ_ONLY, p.offsetAt(i), p.lengthAt(i));
+                    result.add(new Source(kindOf(p.typeAt(i)), p.idAt(i), null, stored));
+                }
+            } catch (IOException | IndexOutOfBoundsException e) {
+                throw error("Cannot read pack %s.", p.getPackFile().getName());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Check one stored copy of an object and collect its references.
+     */
+    private static Result verify(Source s) {
+        Result r = new Result(s);
+        try {
+            ByteBuffer stored = storedBytes(s);
+            r.bytes = stored.remaining();
+            if ((s.kind == ObjectStore.Kind.BLOB || s.kind == ObjectStore.Kind.CHUNK)
+                    && !isCompressed(head(stored))) {
+                // Hash the mapping itself, without copying it.
+                MessageDigest md = sha1Digest();
+                md.update(stored);
+                expect(r, bytesToHex(md.digest()));
+                return r;
+            }
+            byte[] compressed = new byte[stored.remaining()];
+            stored.get(compressed);
+            if (s.kind == ObjectStore.Kind.BLOB || s.kind == ObjectStore.Kind.CHUNK) {
+                try (InputStream in = decompressing(new ByteArrayInputStream(compressed))) {
+                    expect(r, digest(in));
+                }
+                return r;
+            }
+            byte[] contents = decompress(compressed);
+            switch (s.kind) {
+                case COMMIT -> verifyCommit(r, contents);
+                case TREE -> verifyTree(r, contents);
+                case DELTA -> verifyDelta(r, contents);
+                case CHUNK_LIST -> verifyChunkList(r, contents);
+                default -> throw error("Unknown object kind.");
+            }
+        } catch (IOException | RuntimeException e) {
+            if (r.problem == null) {
+                r.problem = "cannot be read";
+            }
+        }
+        return r;
+    }
+
+    /**
+     * Check a commit and refer to its parents and its tree or blobs.
+     */
+    private static void verifyCommit(Result r, byte[] contents) {
+        expect(r, sha1(contents));
+        Commit c = Commit.fromBytes(contents);
+        if (c.getParentCommitIDs() != null) {
+            for (String parent : c.getParentCommitIDs()) {
+                r.refer(Target.COMMIT, parent);
+            }
+        }
+        if (c.getTreeID() != null) {
+            r.refer(Target.TREE, c.getTreeID());
+        } else if (c.getBlobs() != null) {
+            for (String blob : c.getBlobs().values()) {
+                r.refer(Target.BLOB, blob);
+            }
+        }
+    }
+
+    /**
+     * Check a tree and refer to its blobs and subtrees.
+     */
+    private static void verifyTree(Result r, byte[] contents) {
+        expect(r, sha1(contents));
+        List<String> blobs = new ArrayList<>();
+        List<String> subtrees = new ArrayList<>();
+        Tree.children(contents, blobs, subtrees);
+        for (String blob : blobs) {
+            r.refer(Target.BLOB, blob);
+        }
+        for (String subtree : subtrees) {
+            r.refer(Target.TREE, subtree);
+        }
+    }
+
+    /**
+     * Check that a delta rebuilds its blob, if its base is sound, and refer to the base.
+     */
+    private static void verifyDelta(Result r, byte[] delta) {
+        String baseID = Delta.baseID(delta);
+        r.refer(Target.BLOB, baseID);
+        byte[] base = ObjectStore.readBlob(baseID);
+        // A missing or corrupt base is reported on its own.
+        if (base != null && sha1(base).equals(baseID)) {
+            expect(r, sha1(Delta.apply(base, delta)));
+        }
+    }
+
+    /**
+     * Check that a chunk list rebuilds its blob, if all its chunks are sound,
+     * and refer to the chunks.
+     */
+    private static void verifyChunkList(Result r, byte[] list) {
+        MessageDigest md = sha1Digest();
+        long length = 0;
+        boolean complete = true;
+        for (String chunkID : ChunkList.ids(list)) {
+            r.refer(Target.CHUNK, chunkID);
+            byte[] chunk = ObjectStore.read(ObjectStore.Kind.CHUNK, chunkID);
+            // A missing or corrupt chunk is reported on its own.
+            if (chunk == null || !sha1(chunk).equals(chunkID)) {
+                complete = false;
+            } else if (complete) {
+                md.update(chunk);
+                length += chunk.length;
+            }
+        }
+        if (complete) {
+            if (length != ChunkList.length(list)) {
+                r.problem = "wrong length";
+            } else {
+                expect(r, bytesToHex(md.digest()));
+            }
+        }
+    }
+
+    /**
+     * Record a problem unless the hash of the contents is the id of the object.
+     */
+    private static void expect(Result r, String hash) {
+        if (!hash.equals(r.source.id)) {
+            r.problem = "hash mismatch";
+        }
+    }
+
+    /**
+     * Get the stored bytes of a copy, memory-mapping a large loose file.
+     */
+    private static ByteBuffer storedBytes(Source s) throws IOException {
+        if (s.packed != null) {
+            return s.packed.duplicate();
+        }
+        try (FileChannel ch = FileChannel.open(s.loose.toPath(), StandardOpenOption.READ)) {
+            if (ch.size() >= MAP_THRESHOLD) {
+                return ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            }
+        }
+        return ByteBuffer.wrap(readContents(s.loose));
+    }
+
+    /**
+     * Get the first bytes of a buffer, enough to recognize a compressed object.
+     */
+    private static byte[] head(ByteBuffer stored) {
+        byte[] head = new byte[Math.min(stored.remaining(), 8)];
+        stored.duplicate().get(head);
+        return head;
+    }
+
+    /**
+     * Hash everything a stream gives.
+     */
+    private static String digest(InputStream in) throws IOException {
+        MessageDigest md = sha1Digest();
+        byte[] buf = new byte[1 << 16];
+        int n;
+        while ((n = in.read(buf)) > 0) {
+            md.update(buf, 0, n);
+        }
+        return bytesToHex(md.digest());
+    }
+
+    /**
+     * Get a new SHA-1 digest.
+     */
+    private static MessageDigest sha1Digest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException("System does not support SHA-1");
+        }
+    }
+
+    /**
+     * Get the kind of reference that can point to an object of a kind.
+     */
+    private static Target target(ObjectStore.Kind kind) {
+        return switch (kind) {
+            case COMMIT -> Target.COMMIT;
+            case TREE -> Target.TREE;
+            case CHUNK -> Target.CHUNK;
+            default -> Target.BLOB;
+        };
+    }
+
+    /**
+     * Get the kind with a pack type code.
+     */
+    private static ObjectStore.Kind kindOf(byte code) {
+        for (ObjectStore.Kind kind : ObjectStore.Kind.values()) {
+            if (kind.code == code) {
+                return kind;
+            }
+        }
+        throw error("Unknown object type %d.", code);
+    }
+
+    /**
+     * Get the name of a kind as printed: "commit", "chunk-list" and so on.
+     */
+    private static String kindName(ObjectStore.Kind kind) {
+        return kind.name().toLowerCase().replace('_', '-');
+    }
+}
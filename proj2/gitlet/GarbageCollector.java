@@ -0,0 +1,248 @@
+package gitlet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Deletes the objects no branch and no staged file can reach.
+ *
+ * Every object in the store is listed once in an index: a sorted array of
+ * the first 64 bits of each id, 8 bytes per object. Marking sets the bit of
+ * an object in a BitSet over the positions of that index, so a million
+ * objects cost about 8 MB for the index and 125 KB for the marks, and an
+ * object is looked up by binary search. Ids sharing their first 64 bits
+ * share a position; such a position is flagged while the index is built and
+ * the objects at it are marked by their full ids instead, so a reachable
+ * object is never skipped because another one was marked first.
+ *
+ * Marking walks from the branch tips and the head through the parents of
+ * each commit, into its root tree and every subtree not marked yet, to
+ * its blobs, along the base of each blob stored as a delta and to the chunks
+ * of each blob stored as chunks. The sweep repacks the marked objects and
+ * deletes everything else, and the new commit ids are merged into the
+ * sorted commit id index and the commit-graph lookup.
+ *
+ * @author Guang Hou
+ */
+public class GarbageCollector {
+    /* The first 64 bits of the id of every object in the store, sorted and distinct. */
+    private final long[] keys;
+    /* The positions in keys shared by more than one object. */
+    private final BitSet collisions;
+    /* The reachable objects, by their position in keys. */
+    private final BitSet marks;
+    /* The reachable objects at the positions in collisions, by their full ids. */
+    private final HashSet<String> collidingMarks;
+
+    /**
+     * Index the objects in the store, flagging the keys shared by several ids.
+     *
+     * @param sorted The key of every object in the store, sorted.
+     */
+    private GarbageCollector(long[] sorted) {
+        collisions = new BitSet();
+        int distinct = 0;
+        for (int i = 0; i < sorted.length; i += 1) {
+            if (distinct > 0 && sorted[distinct - 1] == sorted[i]) {
+                collisions.set(distinct - 1);
+            } else {
+                sorted[distinct] = sorted[i];
+                distinct += 1;
+            }
+        }
+        keys = Arrays.copyOf(sorted, distinct);
+        marks = new BitSet(distinct);
+        collidingMarks = new HashSet<>();
+    }
+
+    /**
+     * Delete the unreachable objects, and rebuild the commit indexes
+     * if some commits were deleted.
+     *
+     * @param commitRoots The commits to keep with all their ancestors.
+     * @param blobRoots   The blobs to keep besides those of the kept commits.
+     */
+    public static void collect(Collection<String> commitRoots, Collection<String> blobRoots) {
+        GarbageCollector gc = new GarbageCollector(index());
+        for (String id : commitRoots) {
+            gc.markCommits(id);
+        }
+        for (String id : blobRoots) {
+            gc.markBlob(id);
+        }
+
+        boolean droppedCommits = false;
+        for (String id : ObjectStore.ids(ObjectStore.Kind.COMMIT)) {
+            if (!gc.isMarked(id)) {
+                droppedCommits = true;
+                break;
+            }
+        }
+        if (droppedCommits) {
+            // The indexes are derived from the commits, so drop them before the
+            // commits go; they are built again from the objects that remain.
+            CommitGraph.GRAPH_FILE.delete();
+            CommitGraph.LOOKUP_FILE.delete();
+            CommitIndex.INDEX_FILE.delete();
+            CommitIndex.TAIL_FILE.delete();
+            CommitList.LIST_FILE.delete();
+            MessageIndex.clear();
+        } else {
+            // The commits stay, so only the ids added since the last merge move.
+            CommitIndex.get().merge();
+            CommitGraph.get().merge();
+        }
+        ObjectStore.repack(gc::isMarked);
+
+        RepoContext.reset();
+        CommitCache.clear();
+        CommitGraph.reset();
+        CommitIndex.reset();
+        if (droppedCommits) {
+            CommitGraph.get();
+            CommitIndex.get();
+        }
+    }
+
+    /**
+     * List the key of every object in the store, loose or packed.
+     * An object both loose and packed is listed twice, and so is a key
+     * shared by two objects; the constructor tells them apart.
+     *
+     * @return The keys, sorted.
+     */
+    private static long[] index() {
+        long[] result = new long[1024];
+        int n = 0;
+        for (ObjectStore.Kind kind : ObjectStore.Kind.values()) {
+            for (String id : ObjectStore.looseIDs(kind)) {
+                if (n == result.length) {
+                    result = Arrays.copyOf(result, n * 2);
+                }
+                result[n] = key(id);
+                n += 1;
+            }
+        }
+        for (PackFile p : ObjectStore.packs()) {
+            for (int i = 0; i < p.size(); i += 1) {
+                if (n == result.length) {
+                    result = Arrays.copyOf(result, n * 2);
+                }
+                result[n] = key(p.idAt(i));
+                n += 1;
+            }
+        }
+        Arrays.sort(result, 0, n);
+        return Arrays.copyOf(result, n);
+    }
+
+    /**
+     * Get the first 64 bits of an object id.
+     */
+    private static long key(String id) {
+        return Long.parseUnsignedLong(id.substring(0, 16), 16);
+    }
+
+    /**
+     * Mark an object.
+     *
+     * @return True if the object exists and was not marked before.
+     */
+    private boolean mark(String id) {
+        int position = Arrays.binarySearch(keys, key(id));
+        if (position < 0) {
+            return false;
+        }
+        if (collisions.get(position)) {
+            return collidingMarks.add(id);
+        }
+        if (marks.get(position)) {
+            return false;
+        }
+        marks.set(position);
+        return true;
+    }
+
+    /**
+     * Check whether an object was marked.
+     */
+    private boolean isMarked(String id) {
+        int position = Arrays.binarySearch(keys, key(id));
+        if (position < 0) {
+            return false;
+        }
+        return collisions.get(position) ? collidingMarks.contains(id) : marks.get(position);
+    }
+
+    /**
+     * Mark a commit and its ancestors with their files, stopping at marked commits.
+     * Commits are read without the commit cache so a long history stays out of memory.
+     */
+    private void markCommits(String tip) {
+        ArrayList<String> stack = new ArrayList<>();
+        stack.add(tip);
+        while (!stack.isEmpty()) {
+            String id = stack.remove(stack.size() - 1);
+            if (!mark(id)) {
+                continue;
+            }
+            Commit c = Commit.fromBytes(ObjectStore.read(ObjectStore.Kind.COMMIT, id));
+            if (c.getTreeID() != null) {
+                markTree(c.getTreeID());
+            } else if (c.getBlobs() != null) {
+                for (String blob : c.getBlobs().values()) {
+                    markBlob(blob);
+                }
+            }
+            if (c.getParentCommitIDs() != null) {
+                stack.addAll(c.getParentCommitIDs());
+            }
+        }
+    }
+
+    /**
+     * Mark a tree, its subtrees and their blobs. Marked subtrees are skipped,
+     * so the trees shared between commits are read once.
+     */
+    private void markTree(String treeID) {
+        ArrayList<String> stack = new ArrayList<>();
+        List<String> blobs = new ArrayList<>();
+        stack.add(treeID);
+        while (!stack.isEmpty()) {
+            String id = stack.remove(stack.size() - 1);
+            if (!mark(id)) {
+                continue;
+            }
+            blobs.clear();
+            Tree.children(id, blobs, stack);
+            for (String blob : blobs) {
+                markBlob(blob);
+            }
+        }
+    }
+
+    /**
+     * Mark a blob, and the chain of bases it needs if it is stored as a delta
+     * or the chunks it needs if it is stored as chunks.
+     */
+    private void markBlob(String id) {
+        while (id != null && mark(id)) {
+            if (ObjectStore.contains(ObjectStore.Kind.BLOB, id)) {
+                return;
+            }
+            byte[] list = ObjectStore.read(ObjectStore.Kind.CHUNK_LIST, id);
+            if (list != null) {
+                for (String chunkID : ChunkList.ids(list)) {
+                    mark(chunkID);
+                }
+                return;
+            }
+            byte[] delta = ObjectStore.read(ObjectStore.Kind.DELTA, id);
+            id = delta == null ? null : Delta.baseID(delta);
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static gitlet.Utils.*;
+
+/**
+ * Crash-safe updates of the small state files in .gitlet, and the repository lock.
+ *
+ * A set of files is updated as one transaction: each new version is written
+ * to NAME.new and synced to disk, then the names are written to the journal file,
+ * which is synced and renamed into place. From that moment the transaction
+ * is committed: the NAME.new files are renamed over the old ones and the journal
+ * is deleted. If gitlet stops in the middle, the next command finishes the renames
+ * if the journal exists, or deletes the NAME.new files if it does not,
+ * so the files always hold either all old or all new versions.
+ *
+ * Every command holds an exclusive lock on .gitlet/lock while it runs,
+ * so gitlet processes working on the same repository run one after another.
+ * The lock is released by the operating system when the process exits.
+ *
+ * @author Guang Hou
+ */
+public class Journal {
+    /* The .gitlet/journal file listing the files of a committed transaction. */
+    static final File JOURNAL_FILE = join(Repository.GITLET_DIR, "journal");
+    /* The .gitlet/lock file. */
+    static final File LOCK_FILE = join(Repository.GITLET_DIR, "lock");
+    /* The suffix of the new version of a file in a transaction. */
+    private static final String NEW_SUFFIX = ".new";
+
+    /* The channel of the lock file, kept open while the lock is held. */
+    private static FileChannel lockChannel;
+    /* The lock on LOCK_FILE, or null if it is not held. */
+    private static FileLock lock;
+
+    /**
+     * Take the repository lock, waiting for other gitlet processes to finish,
+     * then recover from any interrupted transaction.
+     */
+    public static void lock() {
+        if (lock != null) {
+            return;
+        }
+        try {
+            lockChannel = FileChannel.open(LOCK_FILE.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            lock = lockChannel.lock();
+        } catch (IOException e) {
+            throw error("Cannot lock the repository.");
+        }
+        recover();
+    }
+
+    /**
+     * Release the repository lock if it is held.
+     */
+    public static void unlock() {
+        if (lock == null) {
+            return;
+        }
+        try {
+            lock.release();
+            lockChannel.close();
+        } catch (IOException e) {
+            throw error("Cannot unlock the repository.");
+        }
+        lock = null;
+        lockChannel = null;
+    }
+
+    /**
+     * Finish or roll back a transaction interrupted by a crash.
+     */
+    static void recover() {
+        if (JOURNAL_FILE.isFile()) {
+            for (String name : readContentsAsString(JOURNAL_FILE).split("\n")) {
+                File newVersion = join(Repository.GITLET_DIR, name + NEW_SUFFIX);
+                if (!name.isEmpty() && newVersion.isFile()) {
+                    install(newVersion, join(Repository.GITLET_DIR, name));
+                }
+            }
+            syncDirectory(Repository.GITLET_DIR);
+            JOURNAL_FILE.delete();
+        }
+        File[] leftovers = Repository.GITLET_DIR.listFiles(
+                (dir, name) -> name.endsWith(NEW_SUFFIX));
+        if (leftovers != null) {
+            for (File f : leftovers) {
+                f.delete();
+            }
+        }
+    }
+
+    /**
+     * Replace files in .gitlet by new contents as one crash-safe transaction.
+     *
+     * @param files The new contents in the format of file : contents.
+     */
+    public static void commit(Map<File, byte[]> files) {
+        if (files.isEmpty()) {
+            return;
+        }
+        List<String> names = new ArrayList<>();
+        for (Map.Entry<File, byte[]> entry : files.entrySet()) {
+            String name = entry.getKey().getName();
+            writeSynced(join(Repository.GITLET_DIR, name + NEW_SUFFIX), entry.getValue());
+            names.add(name);
+        }
+
+        // The rename of the journal is the commit point.
+        File journalTemp = join(Repository.GITLET_DIR, JOURNAL_FILE.getName() + ".tmp");
+        writeSynced(journalTemp, String.join("\n", names).getBytes(StandardCharsets.UTF_8));
+        install(journalTemp, JOURNAL_FILE);
+        syncDirectory(Repository.GITLET_DIR);
+
+        for (String name : names) {
+            install(join(Repository.GITLET_DIR, name + NEW_SUFFIX),
+                    join(Repository.GITLET_DIR, name));
+        }
+        syncDirectory(Repository.GITLET_DIR);
+        JOURNAL_FILE.delete();
+    }
+
+    /**
+     * Write a file and force its contents to disk.
+     *
+     * @param f        The file to write.
+     * @param contents The contents.
+     */
+    static void writeSynced(File f, byte[] contents) {
+        try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.wrap(contents);
+            while (buffer.hasRemaining()) {
+                ch.write(buffer);
+            }
+            ch.force(true);
+        } catch (IOException e) {
+            throw error("Cannot write %s.", f.getName());
+        }
+    }
+
+    /**
+     * Append a record to a file, creating it if needed, and force it to disk.
+     * The indexes append this way before the refs are committed, so a crash
+     * never leaves a branch pointing at a commit they did not record.
+     *
+     * @param f      The file to append to.
+     * @param record The bytes to append.
+     */
+    static void appendSynced(File f, byte[] record) {
+        try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            ByteBuffer buffer = ByteBuffer.wrap(record);
+            while (buffer.hasRemaining()) {
+                ch.write(buffer);
+            }
+            ch.force(true);
+        } catch (IOException e) {
+            throw error("Cannot write %s.", f.getName());
+        }
+    }
+
+    /**
+     * Force the contents of a file already written to disk.
+     *
+     * @param f The file.
+     */
+    static void syncFile(File f) {
+        try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.WRITE)) {
+            ch.force(true);
+        } catch (IOException e) {
+            throw error("Cannot write %s.", f.getName());
+        }
+    }
+
+    /**
+     * Rename a file over another one in one atomic step.
+     */
+    private static void install(File from, File to) {
+        try {
+            Files.move(from.toPath(), to.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw error("Cannot write %s.", to.getName());
+        }
+    }
+
+    /**
+     * Force the entries of a directory to disk, so that renames survive a crash.
+     * Systems that cannot sync a directory are skipped.
+     *
+     * @param dir The directory.
+     */
+    static void syncDirectory(File dir) {
+        try (FileChannel ch = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            ch.force(true);
+        } catch (IOException e) {
+            // Not supported on this platform; the renames are still atomic.
+        }
+    }
+}
@@ -0,0 +1,358 @@
+package gitlet;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Line differences between versions of a file, and unified diff output.
+ *
+ * Every version is split into lines, and equal lines get the same number,
+ * so versions are compared as arrays of ints. Two versions are compared by
+ * Myers' O(ND) difference algorithm, in its linear-space form that splits
+ * the problem at the middle of an optimal edit path, so memory stays
+ * proportional to the number of lines however different the versions are.
+ *
+ * @author Guang Hou
+ */
+public class LineDiff {
+    /* The number of unchanged lines shown around each change. */
+    private static final int CONTEXT = 3;
+    /* The note written after a last line without a line end. */
+    private static final byte[] NO_NEWLINE =
+            "\n\\ No newline at end of file\n".getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * One version of a file, split into lines that keep their line ends.
+     */
+    static class Lines {
+        /* The contents. */
+        final byte[] bytes;
+        /* The offset of each line, followed by the length of the contents. */
+        final int[] starts;
+        /* The number of each line; equal lines have equal numbers. */
+        final int[] ids;
+
+        Lines(byte[] bytes, int[] starts, int[] ids) {
+            this.bytes = bytes;
+            this.starts = starts;
+            this.ids = ids;
+        }
+
+        /**
+         * Write the lines [from, to), which are one range of the contents.
+         */
+        void write(int from, int to, OutputStream out) throws IOException {
+            out.write(bytes, starts[from], starts[to] - starts[from]);
+        }
+
+        /**
+         * Write the lines [from, to) each after a prefix character, as in a unified diff.
+         */
+        void writePrefixed(int from, int to, char prefix, OutputStream out) throws IOException {
+            for (int i = from; i < to; i += 1) {
+                out.write(prefix);
+                write(i, i + 1, out);
+                if (bytes[starts[i + 1] - 1] != '\n') {
+                    out.write(NO_NEWLINE);
+                }
+            }
+        }
+    }
+
+    /**
+     * Split versions of a file into lines, giving equal lines the same number.
+     * Lines are numbered with an open-addressing table of ints rather than
+     * a map of objects, so each line costs about 20 bytes besides its contents.
+     *
+     * @param versions The contents of each version.
+     * @return The lines of each version.
+     */
+    static Lines[] split(byte[]... versions) {
+        int[][] starts = new int[versions.length][];
+        int total = 0;
+        for (int v = 0; v < versions.length; v += 1) {
+            starts[v] = lineStarts(versions[v]);
+            total += starts[v].length - 1;
+        }
+
+        // Each slot holds a line number, or -1. A line number is compared again
+        // through the first line given it, counted across all versions.
+        int capacity = Integer.highestOneBit(Math.max(1, total) * 2 - 1) << 1;
+        int[] slots = new int[capacity];
+        Arrays.fill(slots, -1);
+        int[] first = new int[total];
+        int count = 0;
+
+        Lines[] result = new Lines[versions.length];
+        int lineBase = 0;
+        for (int v = 0; v < versions.length; v += 1) {
+            byte[] bytes = versions[v];
+            int[] offsets = starts[v];
+            int[] ids = new int[offsets.length - 1];
+            for (int i = 0; i < ids.length; i += 1) {
+                int hash = 1;
+                for (int k = offsets[i]; k < offsets[i + 1]; k += 1) {
+                    hash = 31 * hash + bytes[k];
+                }
+                int slot = (hash ^ (hash >>> 16)) & (capacity - 1);
+                while (true) {
+                    int id = slots[slot];
+                    if (id < 0) {
+                        slots[slot] = count;
+                        first[count] = lineBase + i;
+                        ids[i] = count;
+                        count += 1;
+                        break;
+                    }
+                    int w = 0;
+                    int line = first[id];
+                    while (line >= starts[w].length - 1) {
+                        line -= starts[w].length - 1;
+                        w += 1;
+                    }
+                    if (Arrays.equals(bytes, offsets[i], offsets[i + 1],
+                            versions[w], starts[w][line], starts[w][line + 1])) {
+                        ids[i] = id;
+                        break;
+                    }
+                    slot = (slot + 1) & (capacity - 1);
+                }
+            }
+            result[v] = new Lines(bytes, offsets, ids);
+            lineBase += ids.length;
+        }
+        return result;
+    }
+
+    /**
+     * Find the offset of each line, followed by the length of the contents.
+     */
+    private static int[] lineStarts(byte[] bytes) {
+        int count = 0;
+        for (int i = 0; i < bytes.length; i += 1) {
+            if (i == 0 || bytes[i - 1] == '\n') {
+                count += 1;
+            }
+        }
+        int[] starts = new int[count + 1];
+        int line = 0;
+        for (int i = 0; i < bytes.length; i += 1) {
+            if (i == 0 || bytes[i - 1] == '\n') {
+                starts[line] = i;
+                line += 1;
+            }
+        }
+        starts[count] = bytes.length;
+        return starts;
+    }
+
+    /**
+     * Write the differences between two versions of a file as unified diff hunks,
+     * with CONTEXT unchanged lines around each change.
+     *
+     * @param oldBytes The old contents.
+     * @param newBytes The new contents.
+     * @param out      The stream to write the hunks to.
+     */
+    public static void writeHunks(byte[] oldBytes, byte[] newBytes, OutputStream out)
+            throws IOException {
+        Lines[] versions = split(oldBytes, newBytes);
+        Lines a = versions[0];
+        Lines b = versions[1];
+        int n = a.ids.length;
+        int m = b.ids.length;
+        int[] match = match(a.ids, b.ids);
+
+        // Each change replaces the old lines [c[0], c[1]) by the new lines [c[2], c[3]).
+        List<int[]> changes = new ArrayList<>();
+        int i = 0;
+        int j = 0;
+        while (i < n || j < m) {
+            if (i < n && match[i] == j) {
+                i += 1;
+                j += 1;
+                continue;
+            }
+            int oldStart = i;
+            int newStart = j;
+            while (i < n && match[i] < 0) {
+                i += 1;
+            }
+            j = i < n ? match[i] : m;
+            changes.add(new int[]{oldStart, i, newStart, j});
+        }
+
+        int first = 0;
+        while (first < changes.size()) {
+            // Join the changes whose contexts touch into one hunk.
+            int last = first;
+            while (last + 1 < changes.size()
+                    && changes.get(last + 1)[0] - changes.get(last)[1] <= 2 * CONTEXT) {
+                last += 1;
+            }
+            int[] c0 = changes.get(first);
+            int[] c1 = changes.get(last);
+            int oldFrom = Math.max(0, c0[0] - CONTEXT);
+            int oldTo = Math.min(n, c1[1] + CONTEXT);
+            int newFrom = c0[2] - (c0[0] - oldFrom);
+            int newTo = c1[3] + (oldTo - c1[1]);
+            out.write(("@@ -" + range(oldFrom, oldTo) + " +" + range(newFrom, newTo) + " @@\n")
+                    .getBytes(StandardCharsets.UTF_8));
+            int at = oldFrom;
+            for (int k = first; k <= last; k += 1) {
+                int[] c = changes.get(k);
+                a.writePrefixed(at, c[0], ' ', out);
+                a.writePrefixed(c[0], c[1], '-', out);
+                b.writePrefixed(c[2], c[3], '+', out);
+                at = c[1];
+            }
+            a.writePrefixed(at, oldTo, ' ', out);
+            first = last + 1;
+        }
+    }
+
+    /**
+     * Format a range of lines [from, to) as in a hunk header: the first line,
+     * counting from 1, and the number of lines if it is not 1.
+     */
+    private static String range(int from, int to) {
+        int count = to - from;
+        if (count == 1) {
+            return Integer.toString(from + 1);
+        }
+        return (count == 0 ? from : from + 1) + "," + count;
+    }
+
+    /**
+     * Find a longest common subsequence of two arrays of line numbers.
+     *
+     * @param a The line numbers of the old version.
+     * @param b The line numbers of the new version.
+     * @return For each line of a, the line of b it matches, or -1.
+     */
+    static int[] match(int[] a, int[] b) {
+        int[] match = new int[a.length];
+        Arrays.fill(match, -1);
+        compare(a, 0, a.length, b, 0, b.length, match);
+        return match;
+    }
+
+    /**
+     * Match the lines a[aLo, aHi) with b[bLo, bHi): strip the common prefix
+     * and suffix, then split at the middle of an optimal edit path.
+     */
+    private static void compare(int[] a, int aLo, int aHi, int[] b, int bLo, int bHi,
+                                int[] match) {
+        while (aLo < aHi && bLo < bHi && a[aLo] == b[bLo]) {
+            match[aLo] = bLo;
+            aLo += 1;
+            bLo += 1;
+        }
+        while (aLo < aHi && bLo < bHi && a[aHi - 1] == b[bHi - 1]) {
+            aHi -= 1;
+            bHi -= 1;
+            match[aHi] = bHi;
+        }
+        if (aLo == aHi || bLo == bHi) {
+            return;
+        }
+        int[] split = middle(a, aLo, aHi, b, bLo, bHi);
+        if (split == null) {
+            // Nothing in common.
+            return;
+        }
+        compare(a, aLo, split[0], b, bLo, split[1], match);
+        compare(a, split[0], aHi, b, split[1], bHi, match);
+    }
+
+    /**
+     * Find a point in the middle of an optimal edit path from a[aLo, aHi) to
+     * b[bLo, bHi) by running Myers' algorithm forward from the start and
+     * backward from the end until the two searches overlap.
+     *
+     * @return The point {aSplit, bSplit}, or null if the ranges share no line.
+     */
+    private static int[] middle(int[] a, int aLo, int aHi, int[] b, int bLo, int bHi) {
+        int n = aHi - aLo;
+        int m = bHi - bLo;
+        int maxD = (n + m + 1) / 2;
+        int offset = maxD;
+        int length = 2 * maxD + 2;
+        // The furthest x reached on each diagonal k = x - y, forward and backward.
+        int[] forward = new int[length];
+        int[] backward = new int[length];
+        Arrays.fill(forward, -1);
+        Arrays.fill(backward, -1);
+        forward[offset + 1] = 0;
+        backward[offset + 1] = 0;
+        int delta = n - m;
+        // With an odd delta the forward search meets the backward one, otherwise the reverse.
+        boolean front = (delta & 1) != 0;
+        int k1Start = 0;
+        int k1End = 0;
+        int k2Start = 0;
+        int k2End = 0;
+        for (int d = 0; d < maxD; d += 1) {
+            for (int k1 = -d + k1Start; k1 <= d - k1End; k1 += 2) {
+                int k1Offset = offset + k1;
+                int x1;
+                if (k1 == -d || (k1 != d && forward[k1Offset - 1] < forward[k1Offset + 1])) {
+                    x1 = forward[k1Offset + 1];
+                } else {
+                    x1 = forward[k1Offset - 1] + 1;
+                }
+                int y1 = x1 - k1;
+                while (x1 < n && y1 < m && a[aLo + x1] == b[bLo + y1]) {
+                    x1 += 1;
+                    y1 += 1;
+                }
+                forward[k1Offset] = x1;
+                if (x1 > n) {
+                    k1End += 2;
+                } else if (y1 > m) {
+                    k1Start += 2;
+                } else if (front) {
+                    int k2Offset = offset + delta - k1;
+                    if (k2Offset >= 0 && k2Offset < length && backward[k2Offset] != -1
+                            && x1 >= n - backward[k2Offset]) {
+                        return new int[]{aLo + x1, bLo + y1};
+                    }
+                }
+            }
+            for (int k2 = -d + k2Start; k2 <= d - k2End; k2 += 2) {
+                int k2Offset = offset + k2;
+                int x2;
+                if (k2 == -d || (k2 != d && backward[k2Offset - 1] < backward[k2Offset + 1])) {
+                    x2 = backward[k2Offset + 1];
+                } else {
+                    x2 = backward[k2Offset - 1] + 1;
+                }
+                int y2 = x2 - k2;
+                while (x2 < n && y2 < m && a[aHi - x2 - 1] == b[bHi - y2 - 1]) {
+                    x2 += 1;
+                    y2 += 1;
+                }
+                backward[k2Offset] = x2;
+                if (x2 > n) {
+                    k2End += 2;
+                } else if (y2 > m) {
+                    k2Start += 2;
+                } else if (!front) {
+                    int k1Offset = offset + delta - k2;
+                    if (k1Offset >= 0 && k1Offset < length && forward[k1Offset] != -1) {
+                        int x1 = forward[k1Offset];
+                        int y1 = offset + x1 - k1Offset;
+                        if (x1 >= n - x2) {
+                            return new int[]{aLo + x1, bLo + y1};
+                        }
+                    }
+                }
+            }
+        }
+        return null;
+    }
+}
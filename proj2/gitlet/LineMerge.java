@@ -0,0 +1,110 @@
+package gitlet;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A three-way merge of text files, line by line, like diff3.
+ *
+ * The ancestor is compared with each side by LineDiff, and the ancestor
+ * lines matched by both comparisons are stable. Between two stable lines,
+ * a chunk changed on one side only takes that side, a chunk changed the same
+ * way on both sides is kept once, and any other chunk is a conflict written
+ * between markers. Lines are written to the output as ranges of the blob
+ * bytes and are never copied into Strings.
+ *
+ * @author Guang Hou
+ */
+public class LineMerge {
+    /* The config key choosing line merges ("lines", the default) or whole-file conflicts ("file"). */
+    static final String STYLE_KEY = "merge.style";
+
+    /* The line before the version of the active branch in a conflict. */
+    private static final byte[] OURS_MARKER = "<<<<<<< HEAD\n".getBytes(StandardCharsets.UTF_8);
+    /* The line between the two versions in a conflict. */
+    private static final byte[] SEPARATOR = "=======\n".getBytes(StandardCharsets.UTF_8);
+    /* The line after the version of the given branch in a conflict. */
+    private static final byte[] THEIRS_MARKER = ">>>>>>>\n".getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * Merge the changes of two versions of a file since their common ancestor.
+     *
+     * @param base   The contents in the common ancestor.
+     * @param ours   The contents in the active branch.
+     * @param theirs The contents in the given branch.
+     * @param out    The stream to write the merged contents to.
+     * @return True if some chunk was a conflict.
+     */
+    public static boolean merge(byte[] base, byte[] ours, byte[] theirs, OutputStream out)
+            throws IOException {
+        LineDiff.Lines[] versions = LineDiff.split(base, ours, theirs);
+        LineDiff.Lines o = versions[0];
+        LineDiff.Lines a = versions[1];
+        LineDiff.Lines b = versions[2];
+        int[] matchA = LineDiff.match(o.ids, a.ids);
+        int[] matchB = LineDiff.match(o.ids, b.ids);
+
+        boolean conflict = false;
+        int i = 0;
+        int x = 0;
+        int y = 0;
+        while (i < o.ids.length || x < a.ids.length || y < b.ids.length) {
+            if (i < o.ids.length && matchA[i] == x && matchB[i] == y) {
+                o.write(i, i + 1, out);
+                i += 1;
+                x += 1;
+                y += 1;
+                continue;
+            }
+            // The chunk runs up to the next ancestor line both sides kept.
+            int j = i;
+            while (j < o.ids.length && (matchA[j] < 0 || matchB[j] < 0)) {
+                j += 1;
+            }
+            int xEnd = j < o.ids.length ? matchA[j] : a.ids.length;
+            int yEnd = j < o.ids.length ? matchB[j] : b.ids.length;
+            if (sameLines(o, i, j, a, x, xEnd)) {
+                b.write(y, yEnd, out);
+            } else if (sameLines(o, i, j, b, y, yEnd) || sameLines(a, x, xEnd, b, y, yEnd)) {
+                a.write(x, xEnd, out);
+            } else {
+                out.write(OURS_MARKER);
+                a.write(x, xEnd, out);
+                out.write(SEPARATOR);
+                b.write(y, yEnd, out);
+                out.write(THEIRS_MARKER);
+                conflict = true;
+            }
+            i = j;
+            x = xEnd;
+            y = yEnd;
+        }
+        return conflict;
+    }
+
+    /**
+     * Write two whole versions of a file as one conflict.
+     *
+     * @param ours   The contents in the active branch.
+     * @param theirs The contents in the given branch.
+     * @param out    The stream to write to.
+     */
+    public static void writeConflict(byte[] ours, byte[] theirs, OutputStream out)
+            throws IOException {
+        out.write(OURS_MARKER);
+        out.write(ours);
+        out.write(SEPARATOR);
+        out.write(theirs);
+        out.write(THEIRS_MARKER);
+    }
+
+    /**
+     * Check whether two ranges of lines are equal.
+     */
+    private static boolean sameLines(LineDiff.Lines p, int pFrom, int pTo,
+                                     LineDiff.Lines q, int qFrom, int qTo) {
+        return Arrays.equals(p.ids, pFrom, pTo, q.ids, qFrom, qTo);
+    }
+}
@@ -0,0 +1,303 @@
+package gitlet;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import static gitlet.Utils.*;
+
+/**
+ * A fast LZ77 compressor in the style of LZ4, for objects where speed
+ * matters more than size.
+ *
+ * A stream is cut into blocks of at most BLOCK bytes, each written as its
+ * length, the length of its compressed form and the compressed form itself;
+ * a block that does not shrink is written as it is, with both lengths equal.
+ * A compressed block is a series of sequences: a token whose high four bits
+ * are the number of literals and low four bits the match length minus
+ * MIN_MATCH, extra length bytes when a field is 15, the literals,
+ * then a two-byte little-endian offset and extra match length bytes.
+ * The last sequence has literals only. Matches are found through a table
+ * of the last position of each hashed four bytes, with no search, so
+ * compression runs in one pass and decompression is a loop of copies.
+ *
+ * @author Guang Hou
+ */
+public class Lz {
+    /* The largest block, which also bounds match offsets. */
+    static final int BLOCK = 64 * 1024;
+    /* The shortest match worth encoding. */
+    private static final int MIN_MATCH = 4;
+    /* The number of bits of the hash of four bytes. */
+    private static final int HASH_BITS = 14;
+
+    /**
+     * Compress one block.
+     *
+     * @param src    The block.
+     * @param length The length of the block.
+     * @param dst    The array to write to, of at least maxCompressed(length) bytes.
+     * @return The length of the compressed block.
+     */
+    static int compress(byte[] src, int length, byte[] dst) {
+        int[] table = new int[1 << HASH_BITS];
+        Arrays.fill(table, -1);
+        int anchor = 0;
+        int out = 0;
+        int i = 0;
+        while (i + MIN_MATCH <= length) {
+            int sequence = readInt(src, i);
+            int h = (sequence * -1640531535) >>> (32 - HASH_BITS);
+            int ref = table[h];
+            table[h] = i;
+            if (ref < 0 || i - ref >= BLOCK || readInt(src, ref) != sequence) {
+                // Skip faster through data that does not match.
+                i += 1 + ((i - anchor) >>> 6);
+                continue;
+            }
+            int matchLength = MIN_MATCH;
+            while (i + matchLength < length && src[ref + matchLength] == src[i + matchLength]) {
+                matchLength += 1;
+            }
+            int literals = i - anchor;
+            int token = out;
+            out += 1;
+            out = writeLength(dst, out, literals);
+            System.arraycopy(src, anchor, dst, out, literals);
+            out += literals;
+            dst[out] = (byte) (i - ref);
+            dst[out + 1] = (byte) ((i - ref) >>> 8);
+            out += 2;
+            out = writeLength(dst, out, matchLength - MIN_MATCH);
+            dst[token] = (byte) ((Math.min(literals, 15) << 4)
+                    | Math.min(matchLength - MIN_MATCH, 15));
+            i += matchLength;
+            anchor = i;
+        }
+        int literals = length - anchor;
+        dst[out] = (byte) (Math.min(literals, 15) << 4);
+        out = writeLength(dst, out + 1, literals);
+        System.arraycopy(src, anchor, dst, out, literals);
+        return out + literals;
+    }
+
+    /**
+     * Get the size of the array compress needs for a block of the given length.
+     */
+    static int maxCompressed(int length) {
+        return length + length / 255 + 16;
+    }
+
+    /**
+     * Decompress one block.
+     *
+     * @param src       The compressed block.
+     * @param srcLength The length of the compressed block.
+     * @param dst       The array to write the block to.
+     * @param dstLength The length of the block.
+     */
+    static void decompress(byte[] src, int srcLength, byte[] dst, int dstLength) {
+        try {
+            int in = 0;
+            int out = 0;
+            while (true) {
+                int token = src[in] & 0xFF;
+                in += 1;
+                int literals = token >>> 4;
+                if (literals == 15) {
+                    int b;
+                    do {
+                        b = src[in] & 0xFF;
+                        in += 1;
+                        literals += b;
+                    } while (b == 255);
+                }
+                System.arraycopy(src, in, dst, out, literals);
+                in += literals;
+                out += literals;
+                if (in >= srcLength) {
+                    break;
+                }
+                int offset = (src[in] & 0xFF) | (src[in + 1] & 0xFF) << 8;
+                in += 2;
+                int matchLength = token & 15;
+                if (matchLength == 15) {
+                    int b;
+                    do {
+                        b = src[in] & 0xFF;
+                        in += 1;
+                        matchLength += b;
+                    } while (b == 255);
+                }
+                matchLength += MIN_MATCH;
+                if (offset == 0 || offset > out || out + matchLength > dstLength) {
+                    throw error("Corrupt object.");
+                }
+                // The match may overlap the bytes it produces, so copy one byte at a time.
+                for (int k = 0; k < matchLength; k += 1) {
+                    dst[out + k] = dst[out - offset + k];
+                }
+                out += matchLength;
+            }
+            if (out != dstLength) {
+                throw error("Corrupt object.");
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw error("Corrupt object.");
+        }
+    }
+
+    /**
+     * Write the part of a length beyond the 15 of a token field.
+     *
+     * @return The position after the bytes written.
+     */
+    private static int writeLength(byte[] dst, int out, int length) {
+        if (length < 15) {
+            return out;
+        }
+        length -= 15;
+        while (length >= 255) {
+            dst[out] = (byte) 255;
+            out += 1;
+            length -= 255;
+        }
+        dst[out] = (byte) length;
+        return out + 1;
+    }
+
+    /**
+     * Read four bytes as a little-endian int.
+     */
+    private static int readInt(byte[] b, int i) {
+        return (b[i] & 0xFF) | (b[i + 1] & 0xFF) << 8 | (b[i + 2] & 0xFF) << 16 | b[i + 3] << 24;
+    }
+
+    /**
+     * Wrap a stream so that what is written to it is compressed block by block.
+     * Closing the returned stream writes the last block and closes out.
+     */
+    static OutputStream compressing(OutputStream out) {
+        DataOutputStream data = new DataOutputStream(out);
+        return new OutputStream() {
+            private final byte[] block = new byte[BLOCK];
+            private final byte[] compressed = new byte[maxCompressed(BLOCK)];
+            private int size;
+
+            @Override
+            public void write(int b) throws IOException {
+                if (size == BLOCK) {
+                    writeBlock();
+                }
+                block[size] = (byte) b;
+                size += 1;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                while (len > 0) {
+                    if (size == BLOCK) {
+                        writeBlock();
+                    }
+                    int n = Math.min(len, BLOCK - size);
+                    System.arraycopy(b, off, block, size, n);
+                    size += n;
+                    off += n;
+                    len -= n;
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (size > 0) {
+                    writeBlock();
+                }
+                data.close();
+            }
+
+            private void writeBlock() throws IOException {
+                int n = compress(block, size, compressed);
+                data.writeInt(size);
+                if (n < size) {
+                    data.writeInt(n);
+                    data.write(compressed, 0, n);
+                } else {
+                    data.writeInt(size);
+                    data.write(block, 0, size);
+                }
+                size = 0;
+            }
+        };
+    }
+
+    /**
+     * Wrap a stream written through compressing so that reading it gives
+     * the original bytes.
+     */
+    static InputStream decompressing(InputStream in) {
+        DataInputStream data = new DataInputStream(in);
+        return new InputStream() {
+            private final byte[] block = new byte[BLOCK];
+            private final byte[] compressed = new byte[BLOCK];
+            private int size;
+            private int position;
+
+            @Override
+            public int read() throws IOException {
+                if (position == size && !readBlock()) {
+                    return -1;
+                }
+                position += 1;
+                return block[position - 1] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                if (position == size && !readBlock()) {
+                    return -1;
+                }
+                int n = Math.min(len, size - position);
+                System.arraycopy(block, position, b, off, n);
+                position += n;
+                return n;
+            }
+
+            @Override
+            public void close() throws IOException {
+                data.close();
+            }
+
+            /**
+             * Read the next block, returning false at the end of the stream.
+             */
+            private boolean readBlock() throws IOException {
+                int length;
+                try {
+                    length = data.readInt();
+                } catch (EOFException e) {
+                    return false;
+                }
+                int stored = data.readInt();
+                if (length <= 0 || length > BLOCK || stored <= 0 || stored > length) {
+                    throw error("Corrupt object.");
+                }
+                if (stored == length) {
+                    data.readFully(block, 0, length);
+                } else {
+                    data.readFully(compressed, 0, stored);
+                    decompress(compressed, stored, block, length);
+                }
+                size = length;
+                position = 0;
+                return true;
+            }
+        };
+    }
+}
@@ -1,5 +1,8 @@
 package gitlet;
 
+import java.util.Arrays;
+import java.util.List;
+
 /**
  * Driver class for Gitlet, a subset of the Git version-control system.
  * @author Guang Hou
@@ -7,9 +10,33 @@ package gitlet;
 public class Main {
 
     /**
-     * Usage: java gitlet.Main ARGS, where ARGS contains the input command
+     * Usage: java gitlet.Main ARGS, where ARGS contains the input command.
+     * If a daemon serves the repository, the command is sent to it.
      */
     public static void main(String[] args) {
+        boolean startsDaemon = args.length == 1 && args[0].equals("serve");
+        if (args.length > 0 && !startsDaemon && Daemon.forward(args)) {
+            return;
+        }
+        runAndReport(args);
+    }
+
+    /**
+     * Run a command, printing the message of an error that stops it.
+     */
+    public static void runAndReport(String[] args) {
+        try {
+            run(args);
+        } catch (GitletException e) {
+            System.out.println(e.getMessage());
+        }
+    }
+
+    /**
+     * Run a command and write the files it changed.
+     * An error stops the command before anything is written.
+     */
+    public static void run(String[] args) {
         if (args.length == 0) {
             System.out.println("Please enter a command.");
             return;
@@ -23,9 +50,16 @@ public class Main {
             }
             case "add" -> {
                 Repository.checkInitialization();
-                validateNumArgs(args, 2);
-                String fileName = args[1];
-                Repository.add(fileName);
+                if (args.length == 2 && args[1].equals("-A")) {
+                    Repository.add(List.of(), true);
+                } else if (args.length == 2) {
+                    String fileName = args[1];
+                    Repository.add(fileName);
+                } else if (args.length > 2) {
+                    Repository.add(Arrays.asList(args).subList(1, args.length), false);
+                } else {
+                    System.out.println("Incorrect operands.");
+                }
             }
             case "commit" -> {
                 Repository.checkInitialization();
@@ -41,20 +75,42 @@ public class Main {
             }
             case "log" -> {
                 Repository.checkInitialization();
-                validateNumArgs(args, 1);
-                Repository.showLocalLog();
+                if (validateLogOptions(args)) {
+                    Repository.showLocalLog(option(args, "-n"), option(args, "--since"));
+                }
             }
             case "global-log" -> {
                 Repository.checkInitialization();
-                validateNumArgs(args, 1);
-                //Repository.showGlobalLog();
-                Repository.showGlobalLogInOrder();
+                if (validateLogOptions(args)) {
+                    Repository.showGlobalLogInOrder(option(args, "-n"), option(args, "--since"));
+                }
             }
             case "find" -> {
                 Repository.checkInitialization();
-                validateNumArgs(args, 2);
-                String message = args[1];
-                Repository.findCommitFromMessage(message);
+                if (args.length == 2) {
+                    String message = args[1];
+                    Repository.findCommitFromMessage(message);
+                } else if (args.length == 3 && args[1].equals("--word")) {
+                    Repository.findCommitFromToken(args[2]);
+                } else if (args.length == 3 && args[1].equals("--substring")) {
+                    Repository.findCommitFromSubstring(args[2]);
+                } else {
+                    System.out.println("Incorrect operands.");
+                }
+            }
+            case "diff" -> {
+                Repository.checkInitialization();
+                if (args.length == 1) {
+                    Repository.showUnstagedDiff();
+                } else if (args.length == 2 && args[1].equals("--staged")) {
+                    Repository.showStagedDiff();
+                } else if (args.length == 2) {
+                    Repository.showCommitDiff(args[1]);
+                } else if (args.length == 3) {
+                    Repository.showCommitsDiff(args[1], args[2]);
+                } else {
+                    System.out.println("Incorrect operands.");
+                }
             }
             case "status" -> {
                 Repository.checkInitialization();
@@ -101,12 +157,42 @@ public class Main {
                 String branchName = args[1];
                 Repository.merge(branchName);
             }
+            case "config" -> {
+                Repository.checkInitialization();
+                if (args.length == 2) {
+                    Repository.config(args[1], null);
+                } else if (args.length == 3) {
+                    Repository.config(args[1], args[2]);
+                } else {
+                    System.out.println("Incorrect operands.");
+                }
+            }
+            case "gc" -> {
+                Repository.checkInitialization();
+                validateNumArgs(args, 1);
+                Repository.gc();
+            }
+            case "fsck" -> {
+                Repository.checkInitialization();
+                validateNumArgs(args, 1);
+                Repository.fsck();
+            }
+            case "serve" -> {
+                if (args.length == 1) {
+                    Daemon.serve();
+                } else if (args.length == 2 && args[1].equals("--stop")) {
+                    System.out.println("No gitlet daemon is running.");
+                } else {
+                    System.out.println("Incorrect operands.");
+                }
+            }
             case "print" -> {
                 Repository.checkInitialization();
                 Repository.printVariables();
             }
             default -> System.out.println("No command with that name exists.");
         }
+        Repository.flush();
     }
 
     public static void validateNumArgs(String[] args, int n) {
@@ -114,4 +200,32 @@ public class Main {
             System.out.println("Incorrect operands.");
         }
     }
+
+    /**
+     * Check that the arguments after a log command are pairs of
+     * a known option (-n or --since) and its value.
+     *
+     * @return False if an error was printed.
+     */
+    public static boolean validateLogOptions(String[] args) {
+        for (int i = 1; i < args.length; i += 2) {
+            if (i + 1 >= args.length || !(args[i].equals("-n") || args[i].equals("--since"))) {
+                System.out.println("Incorrect operands.");
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get the value following an option name, or null if the option is absent.
+     */
+    public static String option(String[] args, String name) {
+        for (int i = 1; i + 1 < args.length; i += 2) {
+            if (args[i].equals(name)) {
+                return args[i + 1];
+            }
+        }
+        return null;
+    }
 }
@@ -0,0 +1,248 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.TreeSet;
+
+import static gitlet.Utils.*;
+
+/**
+ * An index of commit messages, so that find does not read every commit.
+ *
+ * The index lives in .gitlet/messages and has two parts, each split into
+ * 256 append-only shard files named by the first two hex digits of a SHA1 hash:
+ * messages/xx holds the commits whose message hashes to xx, as records of
+ * the raw 20-byte commit id, the varint length of the UTF-8 message and the message;
+ * tokens/xx holds the words whose lowercase form hashes to xx, as records of
+ * the varint length of the UTF-8 word, the word and the raw 20-byte commit id.
+ * An exact message is found by reading one message shard, a word by reading
+ * one token shard. A substring is checked against the commits that have
+ * every whole word of the substring; if it has no whole word, all message shards
+ * are scanned, which still reads no commit.
+ *
+ * @author Guang Hou
+ */
+public class MessageIndex {
+    /* The .gitlet/messages directory. */
+    static final File INDEX_DIR = join(Repository.GITLET_DIR, "messages");
+    /* The directory of the token shards. */
+    private static final File TOKENS_DIR = join(INDEX_DIR, "tokens");
+
+    /**
+     * Build the index from every commit if it does not exist yet.
+     */
+    private static void ensureBuilt() {
+        if (TOKENS_DIR.isDirectory()) {
+            return;
+        }
+        File temp = join(Repository.GITLET_DIR, INDEX_DIR.getName() + ".tmp");
+        deleteDirectory(temp);
+        join(temp, TOKENS_DIR.getName()).mkdirs();
+        for (String id : ObjectStore.ids(ObjectStore.Kind.COMMIT)) {
+            append(temp, id, Repository.readCommitFromFile(id).getMessage());
+        }
+        if (!temp.renameTo(INDEX_DIR)) {
+            throw error("Cannot write message index.");
+        }
+    }
+
+    /**
+     * Delete the index, so it is built again from the commits on next use.
+     */
+    static void clear() {
+        deleteDirectory(INDEX_DIR);
+    }
+
+    /**
+     * Add a new commit to the index.
+     *
+     * @param id      The commit id.
+     * @param message The commit message.
+     */
+    public static void add(String id, String message) {
+        if (TOKENS_DIR.isDirectory()) {
+            append(INDEX_DIR, id, message);
+        } else {
+            // The commit is already stored, so building the index includes it.
+            ensureBuilt();
+        }
+    }
+
+    /**
+     * Append the records of one commit to the shards under dir.
+     */
+    private static void append(File dir, String id, String message) {
+        byte[] raw = hexToBytes(id);
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        record.write(raw, 0, 20);
+        writeString(record, message);
+        appendTo(join(dir, shard(message)), record.toByteArray());
+
+        for (String token : tokenize(message)) {
+            record.reset();
+            writeString(record, token);
+            record.write(raw, 0, 20);
+            appendTo(join(dir, TOKENS_DIR.getName(), shard(token)), record.toByteArray());
+        }
+    }
+
+    /**
+     * Find the commits whose message is exactly the given one.
+     *
+     * @param message The message to look for.
+     * @return The sorted commit ids.
+     */
+    public static List<String> findExact(String message) {
+        ensureBuilt();
+        TreeSet<String> result = new TreeSet<>();
+        ByteBuffer in = ByteBuffer.wrap(readShard(join(INDEX_DIR, shard(message))));
+        byte[] raw = new byte[20];
+        while (in.hasRemaining()) {
+            in.get(raw);
+            if (readString(in).equals(message)) {
+                result.add(bytesToHex(raw));
+            }
+        }
+        return new ArrayList<>(result);
+    }
+
+    /**
+     * Find the commits whose message has the given word, ignoring case.
+     *
+     * @param word The word to look for.
+     * @return The sorted commit ids.
+     */
+    public static List<String> findToken(String word) {
+        ensureBuilt();
+        return new ArrayList<>(idsWithToken(word.toLowerCase(Locale.ROOT)));
+    }
+
+    /**
+     * Find the commits whose message contains the given text.
+     *
+     * @param text The text to look for.
+     * @return The sorted commit ids.
+     */
+    public static List<String> findSubstring(String text) {
+        ensureBuilt();
+        // Only words bounded on both sides inside the text are whole words of the message.
+        List<String> words = tokenize(text);
+        if (!words.isEmpty() && isWordChar(text.charAt(0))) {
+            words.remove(0);
+        }
+        if (!words.isEmpty() && isWordChar(text.charAt(text.length() - 1))) {
+            words.remove(words.size() - 1);
+        }
+
+        TreeSet<String> result = new TreeSet<>();
+        if (words.isEmpty()) {
+            File[] shards = INDEX_DIR.listFiles(File::isFile);
+            for (File shard : shards == null ? new File[0] : shards) {
+                ByteBuffer in = ByteBuffer.wrap(readShard(shard));
+                byte[] raw = new byte[20];
+                while (in.hasRemaining()) {
+                    in.get(raw);
+                    if (readString(in).contains(text)) {
+                        result.add(bytesToHex(raw));
+                    }
+                }
+            }
+            return new ArrayList<>(result);
+        }
+
+        TreeSet<String> candidates = idsWithToken(words.get(0));
+        for (int i = 1; i < words.size() && !candidates.isEmpty(); i += 1) {
+            candidates.retainAll(idsWithToken(words.get(i)));
+        }
+        for (String id : candidates) {
+            if (Repository.readCommitFromFile(id).getMessage().contains(text)) {
+                result.add(id);
+            }
+        }
+        return new ArrayList<>(result);
+    }
+
+    /**
+     * Read the commit ids recorded for a lowercase word.
+     */
+    private static TreeSet<String> idsWithToken(String token) {
+        TreeSet<String> result = new TreeSet<>();
+        ByteBuffer in = ByteBuffer.wrap(readShard(join(TOKENS_DIR, shard(token))));
+        byte[] raw = new byte[20];
+        while (in.hasRemaining()) {
+            String t = readString(in);
+            in.get(raw);
+            if (t.equals(token)) {
+                result.add(bytesToHex(raw));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Split a text into its distinct lowercase words of letters and digits.
+     */
+    static List<String> tokenize(String text) {
+        List<String> result = new ArrayList<>();
+        TreeSet<String> seen = new TreeSet<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i += 1) {
+            boolean word = i < text.length() && isWordChar(text.charAt(i));
+            if (word && start < 0) {
+                start = i;
+            } else if (!word && start >= 0) {
+                String token = text.substring(start, i).toLowerCase(Locale.ROOT);
+                if (seen.add(token)) {
+                    result.add(token);
+                }
+                start = -1;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Check whether a character is part of a word.
+     */
+    private static boolean isWordChar(char c) {
+        return Character.isLetterOrDigit(c);
+    }
+
+    /**
+     * The name of the shard of a key: the first two hex digits of its SHA1 hash.
+     */
+    private static String shard(String key) {
+        return sha1(key).substring(0, 2);
+    }
+
+    /**
+     * Read a shard file, or nothing if it does not exist.
+     */
+    private static byte[] readShard(File f) {
+        return f.isFile() ? readContents(f) : new byte[0];
+    }
+
+    /**
+     * Append a record to a shard file.
+     */
+    private static void appendTo(File f, byte[] record) {
+        Journal.appendSynced(f, record);
+    }
+
+    /**
+     * Delete a directory and the files in it, down to any depth.
+     */
+    private static void deleteDirectory(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                deleteDirectory(f);
+            }
+        }
+        dir.delete();
+    }
+}
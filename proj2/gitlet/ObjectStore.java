@@ -0,0 +1,509 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.function.Predicate;
+
+import static gitlet.Utils.*;
+
+/**
+ * The object database of a gitlet repository.
+ * Objects are stored either loose, one file per object named by its SHA1 hash
+ * in the directory of its kind, or inside pack files under .gitlet/pack.
+ * All reads go through this class so callers do not care where an object lives.
+ *
+ * @author Guang Hou
+ */
+public class ObjectStore {
+    /* The .gitlet/pack directory to store pack files and their indexes. */
+    static final File PACK_DIR = join(Repository.GITLET_DIR, "pack");
+
+    /**
+     * The kinds of objects in the store, each with its own loose directory
+     * and a type code used inside pack files.
+     */
+    enum Kind {
+        COMMIT(1, "commits"),
+        BLOB(2, "blobs"),
+        DELTA(3, "deltas"),
+        TREE(4, "trees"),
+        CHUNK(5, "chunks"),
+        CHUNK_LIST(6, "chunk-lists");
+
+        /* The type code stored in pack indexes. */
+        final byte code;
+        /* The directory of loose objects of this kind. */
+        final File dir;
+
+        Kind(int code, String dirName) {
+            this.code = (byte) code;
+            this.dir = join(Repository.GITLET_DIR, dirName);
+        }
+    }
+
+    /* The config key selecting how new blobs are stored: "full", "delta" or "chunked". */
+    static final String BLOB_STORAGE_KEY = "blobs.storage";
+    /* The config key bounding the length of a chain of deltas. */
+    static final String DELTA_DEPTH_KEY = "blobs.deltaDepth";
+    /* The default bound of the length of a chain of deltas. */
+    private static final int DEFAULT_DELTA_DEPTH = 10;
+    /* The config key bounding the size of the blobs stored as or against deltas. */
+    static final String DELTA_MAX_SIZE_KEY = "blobs.deltaMaxSize";
+    /* The default bound of the size of the blobs stored as or against deltas. */
+    private static final long DEFAULT_DELTA_MAX_SIZE = 128L << 20;
+    /* The config key selecting the codec of new objects: "deflate", "lz" or "none". */
+    static final String CODEC_KEY = "objects.codec";
+
+    /* The smallest blob stored as chunks in the chunked storage mode. */
+    private static final int MIN_CHUNKED_SIZE = 2 * ChunkList.AVG_SIZE;
+
+    /* The packs of this repository, loaded on first use. */
+    private static List<PackFile> packs;
+
+    /**
+     * Load the packs in PACK_DIR if they are not loaded yet.
+     *
+     * @return The list of packs, possibly empty.
+     */
+    static List<PackFile> packs() {
+        if (packs == null) {
+            packs = new ArrayList<>();
+            File[] indexes = PACK_DIR.listFiles((dir, name) -> name.endsWith(".idx"));
+            if (indexes != null) {
+                for (File f : indexes) {
+                    packs.add(new PackFile(f));
+                }
+            }
+        }
+        return packs;
+    }
+
+    /**
+     * Forget the loaded packs and close their channels,
+     * so the next use lists PACK_DIR again.
+     */
+    static void reset() {
+        if (packs != null) {
+            for (PackFile p : packs) {
+                p.close();
+            }
+        }
+        packs = null;
+    }
+
+    /**
+     * Check whether the store has the object, loose or packed.
+     *
+     * @param kind The object kind.
+     * @param id   The object SHA1 hash.
+     * @return True if the object exists.
+     */
+    public static boolean contains(Kind kind, String id) {
+        if (join(kind.dir, id).isFile()) {
+            return true;
+        }
+        for (PackFile p : packs()) {
+            if (p.contains(kind.code, id)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the codec new objects are compressed with.
+     *
+     * @return The codec set in the config, deflate by default.
+     */
+    static Codec codec() {
+        return Codec.named(Config.get(CODEC_KEY, "deflate"));
+    }
+
+    /**
+     * Read the contents of an object, loose or packed, decompressing them if needed.
+     *
+     * @param kind The object kind.
+     * @param id   The object SHA1 hash.
+     * @return The object contents, or null if the object does not exist.
+     */
+    public static byte[] read(Kind kind, String id) {
+        File f = join(kind.dir, id);
+        if (f.isFile()) {
+            return decompress(readContents(f));
+        }
+        for (PackFile p : packs()) {
+            byte[] contents = p.read(kind.code, id);
+            if (contents != null) {
+                return decompress(contents);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Write a loose object unless the store already has it, compressed with codec().
+     * The object is written to a temporary file and synced first, then renamed,
+     * so a loose object is never seen half written, even after a crash.
+     *
+     * @param kind     The object kind.
+     * @param id       The object SHA1 hash.
+     * @param contents The object contents.
+     */
+    public static void write(Kind kind, String id, byte[] contents) {
+        if (contains(kind, id)) {
+            return;
+        }
+        kind.dir.mkdir();
+        File temp = tempFile(kind.dir, id);
+        Journal.writeSynced(temp, compress(contents, codec()));
+        if (!temp.renameTo(join(kind.dir, id))) {
+            throw error("Cannot write object %s.", id);
+        }
+    }
+
+    /**
+     * Create the temporary file an object is written to before it is renamed to its id.
+     * A chunk shared by blobs added at once may be written by two threads,
+     * so each writer has its own temporary file.
+     *
+     * @param dir The directory of the object.
+     * @param id  The object SHA1 hash.
+     * @return The new empty file.
+     */
+    static File tempFile(File dir, String id) {
+        try {
+            return File.createTempFile(id, ".tmp", dir);
+        } catch (IOException e) {
+            throw error("Cannot write object %s.", id);
+        }
+    }
+
+    /**
+     * Copy the contents of an object to the target file, replacing it if it exists.
+     * Loose objects are decompressed as they are streamed to the target.
+     *
+     * @param kind   The object kind.
+     * @param id     The object SHA1 hash.
+     * @param target The file to write.
+     * @return False if the object does not exist.
+     */
+    public static boolean copyTo(Kind kind, String id, File target) {
+        File f = join(kind.dir, id);
+        try {
+            if (f.isFile()) {
+                try (InputStream in = decompressing(Files.newInputStream(f.toPath()))) {
+                    Files.copy(in, target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+                return true;
+            }
+            for (PackFile p : packs()) {
+                byte[] contents = p.read(kind.code, id);
+                if (contents != null) {
+                    try (InputStream in = decompressing(new ByteArrayInputStream(contents))) {
+                        Files.copy(in, target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    }
+                    return true;
+                }
+            }
+        } catch (IOException e) {
+            throw error("Cannot write %s.", target.getName());
+        }
+        return false;
+    }
+
+    /**
+     * Check whether the blob exists, stored in full, as a delta or as chunks.
+     *
+     * @param id The blob SHA1 hash.
+     * @return True if the blob exists.
+     */
+    public static boolean hasBlob(String id) {
+        return contains(Kind.BLOB, id) || contains(Kind.DELTA, id)
+                || contains(Kind.CHUNK_LIST, id);
+    }
+
+    /**
+     * Read the contents of a blob, rebuilding it through its delta chain
+     * or from its chunks if needed.
+     *
+     * @param id The blob SHA1 hash.
+     * @return The blob contents, or null if the blob does not exist.
+     */
+    public static byte[] readBlob(String id) {
+        byte[] contents = read(Kind.BLOB, id);
+        if (contents != null) {
+            return contents;
+        }
+        byte[] list = read(Kind.CHUNK_LIST, id);
+        if (list != null) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) ChunkList.length(list));
+            for (String chunkID : ChunkList.ids(list)) {
+                byte[] chunk = readChunk(chunkID, id);
+                out.write(chunk, 0, chunk.length);
+            }
+            return out.toByteArray();
+        }
+        byte[] delta = read(Kind.DELTA, id);
+        if (delta == null) {
+            return null;
+        }
+        byte[] base = readBlob(Delta.baseID(delta));
+        if (base == null) {
+            throw error("Missing base of blob %s.", id);
+        }
+        return Delta.apply(base, delta);
+    }
+
+    /**
+     * Copy the contents of a blob to the target file, replacing it if it exists.
+     *
+     * @param id     The blob SHA1 hash.
+     * @param target The file to write.
+     * @return False if the blob does not exist.
+     */
+    public static boolean copyBlobTo(String id, File target) {
+        if (copyTo(Kind.BLOB, id, target)) {
+            return true;
+        }
+        byte[] list = read(Kind.CHUNK_LIST, id);
+        if (list != null) {
+            // Write the chunks one after another through one buffer.
+            try (OutputStream out = new BufferedOutputStream(
+                    Files.newOutputStream(target.toPath()), ChunkList.MAX_SIZE)) {
+                for (String chunkID : ChunkList.ids(list)) {
+                    out.write(readChunk(chunkID, id));
+                }
+            } catch (IOException e) {
+                throw error("Cannot write %s.", target.getName());
+            }
+            return true;
+        }
+        byte[] contents = readBlob(id);
+        if (contents == null) {
+            return false;
+        }
+        writeContents(target, contents);
+        return true;
+    }
+
+    /**
+     * Store a new blob as a delta against the previous version of the same file,
+     * if the delta storage mode is on, the chain would not grow past its bound,
+     * neither version is larger than blobs.deltaMaxSize and the delta saves
+     * at least a quarter of the size.
+     * The sizes are checked before the target is read or the base rebuilt,
+     * so a blob that cannot be stored as a delta costs no memory.
+     *
+     * @param id     The SHA1 hash of the new blob.
+     * @param source The file holding the new contents.
+     * @param baseID The blob of the previous version, or null if there is none.
+     * @return True if a delta was written, false if the blob must be stored in full.
+     */
+    public static boolean writeDelta(String id, File source, String baseID) {
+        if (!Config.get(BLOB_STORAGE_KEY, "full").equals("delta")
+                || baseID == null || baseID.equals(id) || !hasBlob(baseID)) {
+            return false;
+        }
+        // A base stored in full is read as it is; the length of any other base
+        // is in the header of its delta or chunk list.
+        int depth = 0;
+        long baseSize;
+        byte[] fullBase = read(Kind.BLOB, baseID);
+        byte[] baseDelta = fullBase == null ? read(Kind.DELTA, baseID) : null;
+        if (fullBase != null) {
+            baseSize = fullBase.length;
+        } else if (baseDelta != null) {
+            depth = Delta.depth(baseDelta);
+            baseSize = Delta.targetLength(baseDelta);
+        } else {
+            baseSize = ChunkList.length(read(Kind.CHUNK_LIST, baseID));
+        }
+        long maxDepth = Math.min(255, Config.getLong(DELTA_DEPTH_KEY, DEFAULT_DELTA_DEPTH));
+        long maxSize = Config.getLong(DELTA_MAX_SIZE_KEY, DEFAULT_DELTA_MAX_SIZE);
+        long targetSize = source.length();
+        // Every byte the target has beyond the base must be inserted by the delta.
+        if (depth + 1 > maxDepth || targetSize > maxSize || baseSize > maxSize
+                || (targetSize - baseSize) * 4 > targetSize * 3) {
+            return false;
+        }
+        byte[] target = readContents(source);
+        byte[] base = fullBase != null ? fullBase : readBlob(baseID);
+        byte[] delta = Delta.create(baseID, depth + 1, base, target);
+        if (delta.length * 4L > target.length * 3L) {
+            return false;
+        }
+        write(Kind.DELTA, id, delta);
+        return true;
+    }
+
+    /**
+     * Read one chunk of a blob.
+     *
+     * @param chunkID The chunk SHA1 hash.
+     * @param blobID  The blob the chunk belongs to, for the error message.
+     * @return The chunk contents.
+     */
+    private static byte[] readChunk(String chunkID, String blobID) {
+        byte[] chunk = read(Kind.CHUNK, chunkID);
+        if (chunk == null) {
+            throw error("Missing chunk of blob %s.", blobID);
+        }
+        return chunk;
+    }
+
+    /**
+     * Store a new blob as a list of content-defined chunks, writing only the chunks
+     * the store does not have yet, if the chunked storage mode is on
+     * and the blob is large enough to be cut.
+     *
+     * @param id     The SHA1 hash of the new blob.
+     * @param source The file holding the new contents.
+     * @return True if a chunk list was written, false if the blob must be stored in full.
+     */
+    public static boolean writeChunked(String id, File source) {
+        if (!Config.get(BLOB_STORAGE_KEY, "full").equals("chunked")
+                || source.length() < MIN_CHUNKED_SIZE) {
+            return false;
+        }
+        // The file is read through a window of one largest chunk, so it is
+        // never held in memory whole.
+        List<String> chunkIDs = new ArrayList<>();
+        List<Integer> sizes = new ArrayList<>();
+        byte[] window = new byte[ChunkList.MAX_SIZE];
+        int filled = 0;
+        try (InputStream in = Files.newInputStream(source.toPath())) {
+            while (true) {
+                filled += in.readNBytes(window, filled, window.length - filled);
+                if (filled == 0) {
+                    break;
+                }
+                int size = ChunkList.nextChunk(window, filled);
+                byte[] chunk = Arrays.copyOf(window, size);
+                String chunkID = sha1(chunk);
+                write(Kind.CHUNK, chunkID, chunk);
+                chunkIDs.add(chunkID);
+                sizes.add(size);
+                System.arraycopy(window, size, window, 0, filled - size);
+                filled -= size;
+            }
+        } catch (IOException e) {
+            throw error("Cannot read %s.", source.getName());
+        }
+        write(Kind.CHUNK_LIST, id, ChunkList.encode(chunkIDs, sizes));
+        return true;
+    }
+
+    /**
+     * List the loose objects of the given kind.
+     * Only files named by a full SHA1 hash are objects.
+     *
+     * @param kind The object kind.
+     * @return The sorted loose object ids.
+     */
+    static List<String> looseIDs(Kind kind) {
+        List<String> names = plainFilenamesIn(kind.dir);
+        List<String> result = new ArrayList<>();
+        if (names != null) {
+            for (String name : names) {
+                if (name.length() == UID_LENGTH) {
+                    result.add(name);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * List all objects of the given kind, loose and packed.
+     *
+     * @param kind The object kind.
+     * @return The sorted object ids without duplicates.
+     */
+    public static List<String> ids(Kind kind) {
+        TreeSet<String> result = new TreeSet<>(looseIDs(kind));
+        for (PackFile p : packs()) {
+            result.addAll(p.ids(kind.code));
+        }
+        return new ArrayList<>(result);
+    }
+
+    /**
+     * Move every loose object and every existing pack into one new pack,
+     * then delete the loose files and the old packs.
+     *
+     * @return The number of objects in the new pack.
+     */
+    public static int repack() {
+        return repack(id -> true);
+    }
+
+    /**
+     * Move the kept loose objects and the kept objects of every existing pack
+     * into one new pack, then delete all loose files and the old packs,
+     * so the objects that are not kept are gone.
+     *
+     * @param keep Whether to keep the object with an id.
+     * @return The number of objects in the new pack.
+     */
+    public static int repack(Predicate<String> keep) {
+        TreeSet<PackFile.Entry> entries = new TreeSet<>();
+        List<File> looseFiles = new ArrayList<>();
+        boolean dropped = false;
+        for (Kind kind : Kind.values()) {
+            for (String id : looseIDs(kind)) {
+                File f = join(kind.dir, id);
+                if (keep.test(id)) {
+                    entries.add(new PackFile.Entry(kind.code, id, f, null));
+                }
+                looseFiles.add(f);
+            }
+        }
+        List<PackFile> oldPacks = new ArrayList<>(packs());
+        for (PackFile p : oldPacks) {
+            for (int i = 0; i < p.size(); i += 1) {
+                String id = p.idAt(i);
+                if (keep.test(id)) {
+                    entries.add(new PackFile.Entry(p.typeAt(i), id, null, p));
+                } else {
+                    dropped = true;
+                }
+            }
+        }
+        if (looseFiles.isEmpty() && !dropped && oldPacks.size() <= 1) {
+            return entries.size();
+        }
+
+        File newIndex = null;
+        if (!entries.isEmpty()) {
+            PACK_DIR.mkdir();
+            newIndex = PackFile.write(PACK_DIR, new ArrayList<>(entries));
+        }
+
+        // The new pack holds everything kept now, so the old copies can go.
+        for (File f : looseFiles) {
+            f.delete();
+        }
+        for (PackFile p : oldPacks) {
+            p.close();
+            File packFile = p.getPackFile();
+            String base = packFile.getName().substring(0, packFile.getName().length() - 5);
+            if (!join(PACK_DIR, base + ".idx").equals(newIndex)) {
+                join(PACK_DIR, base + ".idx").delete();
+                packFile.delete();
+            }
+        }
+        reset();
+        return entries.size();
+    }
+}
@@ -0,0 +1,429 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static gitlet.Utils.*;
+
+/**
+ * A pack of objects stored in one append-only pack file plus a sorted SHA-1 index.
+ *
+ * The pack file starts with the magic "GPAK" and a version number,
+ * followed by the raw contents of every object, back to back.
+ * The index file starts with the magic "GIDX", a version number, the object count
+ * and a 256-entry fan-out table (the number of objects whose first id byte is
+ * less than or equal to i), followed by one fixed-size record per object sorted by id:
+ * 20-byte raw id, 1-byte object type, 8-byte offset into the pack, 8-byte length.
+ * Objects are read through one channel per pack, opened on first use
+ * and kept until the pack is closed.
+ *
+ * @author Guang Hou
+ */
+public class PackFile {
+    /* Magic bytes at the start of a pack file. */
+    private static final byte[] PACK_MAGIC = {'G', 'P', 'A', 'K'};
+    /* Magic bytes at the start of an index file. */
+    private static final byte[] INDEX_MAGIC = {'G', 'I', 'D', 'X'};
+    /* The only format version written so far. */
+    private static final int VERSION = 1;
+    /* Size of the pack header: magic plus version. */
+    private static final int PACK_HEADER = 8;
+    /* Size of the index header: magic, version, count and the fan-out table. */
+    private static final int INDEX_HEADER = 12 + 256 * 4;
+    /* Size of one index record. */
+    private static final int RECORD = 20 + 1 + 8 + 8;
+
+    /* The pack file holding the object contents. */
+    private final File packFile;
+    /* The memory-mapped index file. */
+    private final MappedByteBuffer index;
+    /* The number of objects in this pack. */
+    private final int count;
+    /* The channel reading the pack file, opened on first use. */
+    private FileChannel channel;
+
+    /**
+     * Open an existing pack through its index file.
+     *
+     * @param indexFile The .idx file of the pack.
+     */
+    public PackFile(File indexFile) {
+        String name = indexFile.getName();
+        this.packFile = new File(indexFile.getParentFile(),
+                name.substring(0, name.length() - ".idx".length()) + ".pack");
+        try (FileChannel ch = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)) {
+            index = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+        } catch (IOException e) {
+            throw error("Cannot open pack index %s.", name);
+        }
+        if (index.capacity() < INDEX_HEADER) {
+            throw error("Corrupt pack index %s.", name);
+        }
+        for (int i = 0; i < INDEX_MAGIC.length; i += 1) {
+            if (index.get(i) != INDEX_MAGIC[i]) {
+                throw error("Corrupt pack index %s.", name);
+            }
+        }
+        if (index.getInt(4) != VERSION) {
+            throw error("Unsupported version of pack index %s.", name);
+        }
+        count = index.getInt(8);
+    }
+
+    /**
+     * Get the channel reading the pack file, opening it and checking
+     * its header on first use or after the pack was closed.
+     *
+     * @return The open channel.
+     */
+    private synchronized FileChannel channel() {
+        if (channel == null || !channel.isOpen()) {
+            FileChannel ch = null;
+            try {
+                ch = FileChannel.open(packFile.toPath(), StandardOpenOption.READ);
+                ByteBuffer header = ByteBuffer.allocate(PACK_HEADER);
+                ch.read(header, 0);
+                byte[] magic = Arrays.copyOf(header.array(), PACK_MAGIC.length);
+                if (header.position() < PACK_HEADER || !Arrays.equals(magic, PACK_MAGIC)
+                        || header.getInt(PACK_MAGIC.length) != VERSION) {
+                    throw error("Corrupt pack %s.", packFile.getName());
+                }
+                channel = ch;
+            } catch (IOException e) {
+                throw error("Cannot read pack %s.", packFile.getName());
+            } finally {
+                if (channel != ch && ch != null) {
+                    try {
+                        ch.close();
+                    } catch (IOException e) {
+                        // The channel was only read.
+                    }
+                }
+            }
+        }
+        return channel;
+    }
+
+    /**
+     * Close the channel of the pack file, if it is open.
+     * A later read opens it again.
+     */
+    public synchronized void close() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Nothing was written through it, so nothing is lost.
+            }
+            channel = null;
+        }
+    }
+
+    /**
+     * Getter method for the pack file.
+     *
+     * @return The .pack file of this pack.
+     */
+    public File getPackFile() {
+        return packFile;
+    }
+
+    /**
+     * Getter method for the number of objects.
+     *
+     * @return The number of objects in this pack.
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Find the index record position of the object with the given type and id,
+     * using the fan-out table to narrow a binary search.
+     *
+     * @param type The object type code.
+     * @param id   The 40-character hex id.
+     * @return The record number, or -1 if the pack does not contain the object.
+     */
+    private int find(byte type, String id) {
+        if (!isHexID(id)) {
+            return -1;
+        }
+        byte[] raw = hexToBytes(id);
+        int first = raw[0] & 0xff;
+        int lo = first == 0 ? 0 : index.getInt(12 + (first - 1) * 4);
+        int hi = index.getInt(12 + first * 4) - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = compareRecord(mid, raw, type);
+            if (cmp == 0) {
+                return mid;
+            } else if (cmp < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Compare the record at position i with the given raw id and type.
+     */
+    private int compareRecord(int i, byte[] raw, byte type) {
+        int base = INDEX_HEADER + i * RECORD;
+        for (int k = 0; k < 20; k += 1) {
+            int a = index.get(base + k) & 0xff;
+            int b = raw[k] & 0xff;
+            if (a != b) {
+                return a - b;
+            }
+        }
+        return index.get(base + 20) - type;
+    }
+
+    /**
+     * Check whether this pack has the object.
+     *
+     * @param type The object type code.
+     * @param id   The object id.
+     * @return True if the object is in this pack.
+     */
+    public boolean contains(byte type, String id) {
+        return find(type, id) >= 0;
+    }
+
+    /**
+     * Read the whole contents of an object.
+     *
+     * @param type The object type code.
+     * @param id   The object id.
+     * @return The object contents, or null if the pack does not contain the object.
+     */
+    public byte[] read(byte type, String id) {
+        int i = find(type, id);
+        if (i < 0) {
+            return null;
+        }
+        long offset = index.getLong(INDEX_HEADER + i * RECORD + 21);
+        long length = index.getLong(INDEX_HEADER + i * RECORD + 29);
+        ByteBuffer buf = ByteBuffer.allocate((int) length);
+        FileChannel ch = channel();
+        try {
+            while (buf.hasRemaining()) {
+                if (ch.read(buf, offset + buf.position()) < 0) {
+                    throw error("Truncated pack %s.", packFile.getName());
+                }
+            }
+        } catch (IOException e) {
+            throw error("Cannot read pack %s.", packFile.getName());
+        }
+        return buf.array();
+    }
+
+    /**
+     * Stream the contents of an object to the target channel without
+     * loading it into memory.
+     *
+     * @param type   The object type code.
+     * @param id     The object id.
+     * @param target The channel to write to.
+     * @return False if the pack does not contain the object.
+     */
+    public boolean transferTo(byte type, String id, WritableByteChannel target) {
+        int i = find(type, id);
+        if (i < 0) {
+            return false;
+        }
+        long offset = index.getLong(INDEX_HEADER + i * RECORD + 21);
+        long length = index.getLong(INDEX_HEADER + i * RECORD + 29);
+        FileChannel ch = channel();
+        try {
+            long done = 0;
+            while (done < length) {
+                done += ch.transferTo(offset + done, length - done, target);
+            }
+        } catch (IOException e) {
+            throw error("Cannot read pack %s.", packFile.getName());
+        }
+        return true;
+    }
+
+    /**
+     * List the ids of all objects of the given type, in sorted order.
+     *
+     * @param type The object type code.
+     * @return The object ids.
+     */
+    public List<String> ids(byte type) {
+        List<String> result = new ArrayList<>();
+        byte[] raw = new byte[20];
+        for (int i = 0; i < count; i += 1) {
+            int base = INDEX_HEADER + i * RECORD;
+            if (index.get(base + 20) == type) {
+                index.get(base, raw);
+                result.add(bytesToHex(raw));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Getter method for the type of the i-th object in id order.
+     */
+    public byte typeAt(int i) {
+        return index.get(INDEX_HEADER + i * RECORD + 20);
+    }
+
+    /**
+     * Getter method for the id of the i-th object in id order.
+     */
+    public String idAt(int i) {
+        byte[] raw = new byte[20];
+        index.get(INDEX_HEADER + i * RECORD, raw);
+        return bytesToHex(raw);
+    }
+
+    /**
+     * Getter method for the offset in the pack file of the i-th object in id order.
+     */
+    public long offsetAt(int i) {
+        return index.getLong(INDEX_HEADER + i * RECORD + 21);
+    }
+
+    /**
+     * Getter method for the stored length of the i-th object in id order.
+     */
+    public long lengthAt(int i) {
+        return index.getLong(INDEX_HEADER + i * RECORD + 29);
+    }
+
+    /**
+     * A source of one object to be written into a new pack.
+     * Either a loose file or an entry of an existing pack.
+     */
+    public static class Entry implements Comparable<Entry> {
+        /* The object type code. */
+        final byte type;
+        /* The object id. */
+        final String id;
+        /* The loose file holding the object, or null. */
+        final File loose;
+        /* The existing pack holding the object, or null. */
+        final PackFile pack;
+
+        Entry(byte type, String id, File loose, PackFile pack) {
+            this.type = type;
+            this.id = id;
+            this.loose = loose;
+            this.pack = pack;
+        }
+
+        @Override
+        public int compareTo(Entry e) {
+            int cmp = id.compareTo(e.id);
+            return cmp != 0 ? cmp : type - e.type;
+        }
+    }
+
+    /**
+     * Write a new pack and its index in the directory from the sorted entries.
+     * Both files are written under temporary names and renamed into place,
+     * index last, so readers never see a partial pack.
+     *
+     * @param dir     The pack directory.
+     * @param entries The objects to pack, sorted by id and without duplicates.
+     * @return The index file of the new pack.
+     */
+    public static File write(File dir, List<Entry> entries) {
+        List<String> names = new ArrayList<>();
+        for (Entry e : entries) {
+            names.add(e.id + e.type);
+        }
+        String name = "pack-" + sha1(String.join("\n", names));
+        File packTemp = join(dir, name + ".pack.tmp");
+        File indexTemp = join(dir, name + ".idx.tmp");
+        long[] offsets = new long[entries.size()];
+        long[] lengths = new long[entries.size()];
+
+        try (FileChannel out = FileChannel.open(packTemp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(PACK_HEADER);
+            header.put(PACK_MAGIC).putInt(VERSION).flip();
+            out.write(header);
+            for (int i = 0; i < entries.size(); i += 1) {
+                Entry e = entries.get(i);
+                offsets[i] = out.position();
+                if (e.loose != null) {
+                    try (FileChannel in = FileChannel.open(e.loose.toPath(),
+                            StandardOpenOption.READ)) {
+                        long size = in.size();
+                        long done = 0;
+                        while (done < size) {
+                            done += in.transferTo(done, size - done, out);
+                        }
+                    }
+                } else {
+                    e.pack.transferTo(e.type, e.id, out);
+                }
+                lengths[i] = out.position() - offsets[i];
+            }
+            out.force(true);
+        } catch (IOException excp) {
+            throw error("Cannot write pack %s.", name);
+        }
+
+        int[] fanout = new int[256];
+        for (Entry e : entries) {
+            fanout[Integer.parseInt(e.id.substring(0, 2), 16)] += 1;
+        }
+        for (int i = 1; i < 256; i += 1) {
+            fanout[i] += fanout[i - 1];
+        }
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(indexTemp.toPath())))) {
+            out.write(INDEX_MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+            for (int f : fanout) {
+                out.writeInt(f);
+            }
+            for (int i = 0; i < entries.size(); i += 1) {
+                out.write(hexToBytes(entries.get(i).id));
+                out.writeByte(entries.get(i).type);
+                out.writeLong(offsets[i]);
+                out.writeLong(lengths[i]);
+            }
+        } catch (IOException excp) {
+            throw error("Cannot write pack index %s.", name);
+        }
+        // Both files reach the disk before the renames, and the renames before
+        // the caller deletes the loose copies.
+        Journal.syncFile(indexTemp);
+
+        File packFinal = join(dir, name + ".pack");
+        File indexFinal = join(dir, name + ".idx");
+        try {
+            Files.move(packTemp.toPath(), packFinal.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.move(indexTemp.toPath(), indexFinal.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            throw error("Cannot install pack %s.", name);
+        }
+        Journal.syncDirectory(dir);
+        return indexFinal;
+    }
+}
@@ -0,0 +1,231 @@
+package gitlet;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+
+import static gitlet.Utils.*;
+
+/**
+ * The state of the repository during one gitlet command.
+ *
+ * The branches, head, active branch and staging areas are read from their files
+ * once, on first use, and every later read during the command sees the
+ * in-memory copy. Saving only records the new values; flush writes the files
+ * whose contents changed, once, when the command is done, as one Journal transaction.
+ * Small blobs read during the command are kept, so merge and checkout do not
+ * decode the same objects again; commits are kept by the CommitCache.
+ *
+ * @author Guang Hou
+ */
+public class RepoContext {
+    /* The largest total size of the blobs kept in memory. */
+    private static final long BLOB_CACHE_BYTES = 32L << 20;
+
+    /* The context of the current command, created on first use. */
+    private static RepoContext current;
+
+    /* HashMap<String, String> for branchName : commitID. */
+    private HashMap<String, String> branches;
+    /* Head Commit hash ID. */
+    private String headID;
+    /* Active branch name in String. */
+    private String activeBranch;
+    /* HashMap<String, String> of fileName : fileHash for all files staged to add. */
+    private HashMap<String, String> addFiles;
+    /* HashMap<String, String> of fileName : fileHash for all files staged to remove. */
+    private HashMap<String, String> rmFiles;
+
+    /* Copies of the values last read from or written to the files, or null if unknown. */
+    private HashMap<String, String> storedBranches;
+    private String storedHeadID;
+    private String storedActiveBranch;
+    private HashMap<String, String> storedAddFiles;
+    private HashMap<String, String> storedRmFiles;
+
+    /* The stat cache of working files, loaded on first use. */
+    private StatIndex statIndex;
+    /* The blobs read so far in the format of fileHash : contents. */
+    private final HashMap<String, byte[]> blobs = new HashMap<>();
+    /* The total size of the blobs kept. */
+    private long blobBytes;
+
+    /**
+     * Get the context of the current command.
+     *
+     * @return The RepoContext object.
+     */
+    public static RepoContext get() {
+        if (current == null) {
+            current = new RepoContext();
+        }
+        return current;
+    }
+
+    /**
+     * Forget the context, so the next command reads everything again.
+     */
+    static void reset() {
+        current = null;
+    }
+
+    /**
+     * Forget the values of a command that stopped with an error before flushing,
+     * so the next command reads the files again. The kept objects stay valid.
+     */
+    void discardChanges() {
+        branches = null;
+        statIndex = null;
+    }
+
+    /**
+     * Read the branches, head, active branch and staging areas from their files,
+     * unless they were already read or set during this command.
+     */
+    public void load() {
+        if (branches != null) {
+            return;
+        }
+        branches = readObject(Repository.BRANCHES_FILE, HashMap.class);
+        activeBranch = readContentsAsString(Repository.ACTIVE_BRANCH_FILE);
+        headID = readContentsAsString(Repository.HEAD_FILE);
+        addFiles = readObject(Repository.ADD_FILE, HashMap.class);
+        rmFiles = readObject(Repository.RM_FILE, HashMap.class);
+        remember();
+    }
+
+    /**
+     * Record new values for the branches, head, active branch and staging areas.
+     * Nothing is written until flush.
+     */
+    public void update(HashMap<String, String> newBranches, String newHeadID,
+                       String newActiveBranch, HashMap<String, String> newAddFiles,
+                       HashMap<String, String> newRmFiles) {
+        branches = newBranches;
+        headID = newHeadID;
+        activeBranch = newActiveBranch;
+        addFiles = newAddFiles;
+        rmFiles = newRmFiles;
+    }
+
+    /**
+     * Write the files whose values changed since they were read, all or none of them,
+     * and the stat cache.
+     */
+    public void flush() {
+        if (branches != null) {
+            LinkedHashMap<File, byte[]> changed = new LinkedHashMap<>();
+            if (!branches.equals(storedBranches)) {
+                changed.put(Repository.BRANCHES_FILE, serialize(branches));
+            }
+            if (!headID.equals(storedHeadID)) {
+                changed.put(Repository.HEAD_FILE, headID.getBytes(StandardCharsets.UTF_8));
+            }
+            if (!activeBranch.equals(storedActiveBranch)) {
+                changed.put(Repository.ACTIVE_BRANCH_FILE,
+                        activeBranch.getBytes(StandardCharsets.UTF_8));
+            }
+            if (!addFiles.equals(storedAddFiles)) {
+                changed.put(Repository.ADD_FILE, serialize(addFiles));
+            }
+            if (!rmFiles.equals(storedRmFiles)) {
+                changed.put(Repository.RM_FILE, serialize(rmFiles));
+            }
+            Journal.commit(changed);
+            remember();
+        }
+        if (statIndex != null) {
+            statIndex.save();
+        }
+    }
+
+    /**
+     * Keep copies of the current values as the contents of the files.
+     */
+    private void remember() {
+        storedBranches = new HashMap<>(branches);
+        storedHeadID = headID;
+        storedActiveBranch = activeBranch;
+        storedAddFiles = new HashMap<>(addFiles);
+        storedRmFiles = new HashMap<>(rmFiles);
+    }
+
+    /**
+     * Getter method for the branches in the format of branchName : commitID.
+     */
+    public HashMap<String, String> branches() {
+        return branches;
+    }
+
+    /**
+     * Getter method for the head commit id.
+     */
+    public String headID() {
+        return headID;
+    }
+
+    /**
+     * Getter method for the active branch name.
+     */
+    public String activeBranch() {
+        return activeBranch;
+    }
+
+    /**
+     * Getter method for the files staged to add.
+     */
+    public HashMap<String, String> addFiles() {
+        return addFiles;
+    }
+
+    /**
+     * Getter method for the files staged to remove.
+     */
+    public HashMap<String, String> rmFiles() {
+        return rmFiles;
+    }
+
+    /**
+     * Get the stat cache of working files, reading it on first use.
+     *
+     * @return The StatIndex object.
+     */
+    public StatIndex statIndex() {
+        if (statIndex == null) {
+            statIndex = StatIndex.load();
+        }
+        return statIndex;
+    }
+
+    /**
+     * Read a commit, loose or packed, through the process-wide CommitCache.
+     * Only the header is decoded; the blobs are decoded when they are first used.
+     *
+     * @param commitID The commit id.
+     * @return The Commit object, or null if there is no such commit.
+     */
+    public Commit commit(String commitID) {
+        return CommitCache.get(commitID);
+    }
+
+    /**
+     * Read the contents of a blob, keeping it for later reads
+     * while the kept blobs stay under BLOB_CACHE_BYTES.
+     *
+     * @param fileHash The blob hash.
+     * @return The blob contents, or null if the blob does not exist.
+     */
+    public byte[] blob(String fileHash) {
+        byte[] contents = blobs.get(fileHash);
+        if (contents != null) {
+            return contents;
+        }
+        contents = ObjectStore.readBlob(fileHash);
+        if (contents != null && blobBytes + contents.length <= BLOB_CACHE_BYTES) {
+            blobs.put(fileHash, contents);
+            blobBytes += contents.length;
+        }
+        return contents;
+    }
+}
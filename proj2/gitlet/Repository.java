@@ -1,10 +1,22 @@
 package gitlet;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
 import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static gitlet.Utils.*;
 
@@ -22,24 +34,24 @@ public class Repository {
      * It provides a way to access other files after adding the relevant relative path. */
     private static final File CWD = new File(System.getProperty("user.dir"));
     /* The hidden `.gitlet` directory. This is where all the persistence files will be stored. */
-    private static final File GITLET_DIR = join(CWD, ".gitlet");
+    static final File GITLET_DIR = join(CWD, ".gitlet");
     /* The .gitlet/commits directory to store serialized Commit objects. */
     private static final File COMMITS_DIR = join(GITLET_DIR, "commits");
     /* The .gitlet/blobs directory to store file blobs. */
     private static final File BLOBS_DIR = join(GITLET_DIR, "blobs");
 
     /* File storing the HashMap<String, String> of branchName : commitID. */
-    private static File branchesFile = join(GITLET_DIR, "BRANCHES");
+    static final File BRANCHES_FILE = join(GITLET_DIR, "BRANCHES");
     /* File storing the string of the head Commit ID. */
-    private static File headFile = join(GITLET_DIR, "HEAD");
+    static final File HEAD_FILE = join(GITLET_DIR, "HEAD");
     /* File storing the string of the active branch name. */
-    private static File activeBranchFile = join(GITLET_DIR, "ACTIVE_BRANCH");
+    static final File ACTIVE_BRANCH_FILE = join(GITLET_DIR, "ACTIVE_BRANCH");
     /* File storing HashMap<String, String> of fileName : fileHash
      * for all files staged to add. */
-    private static File addFile = join(GITLET_DIR, "stagingADD");
+    static final File ADD_FILE = join(GITLET_DIR, "stagingADD");
     /* File storing HashMap<String, String> of fileName : fileHash
      * for all files staged to remove. */
-    private static File rmFile = join(GITLET_DIR, "stagingRM");
+    static final File RM_FILE = join(GITLET_DIR, "stagingRM");
 
     /* HashMap<String, String> for branchName : commitID. */
     private static HashMap<String, String> branchesMap = new HashMap<>();
@@ -58,17 +70,20 @@ public class Repository {
     private static Commit headCommit;
     /* The head Commit object's blobs. This variable is not stored as file. */
     private static HashMap<String, String> headCommitBlobs = new HashMap<>();
+    /* The number of threads reading and writing files during add, checkout and reset. */
+    private static final int FILE_THREADS =
+            Math.max(1, Math.min(8, Runtime.getRuntime().availableProcessors()));
 
     /**
      * Create the necessary directories and make the initial commit.
      */
     public static void init() {
         if (GITLET_DIR.exists()) {
-            System.out.println(
+            throw error(
                     "A Gitlet version-control system already exists in the current directory.");
-            System.exit(0);
         }
         GITLET_DIR.mkdir();
+        Journal.lock();
         COMMITS_DIR.mkdir();
         BLOBS_DIR.mkdir();
 
@@ -88,9 +103,11 @@ public class Repository {
      */
     public static void checkInitialization() {
         if (!GITLET_DIR.exists()) {
-            System.out.println("Not in an initialized Gitlet directory.");
-            System.exit(0);
+            throw error("Not in an initialized Gitlet directory.");
         }
+        // Wait for other gitlet processes on this repository, and finish
+        // any update a crash left half done, before reading any state.
+        Journal.lock();
     }
 
     /**
@@ -102,13 +119,19 @@ public class Repository {
      * @return The SHA1 hash of the serialized file.
      */
     public static String saveCommitToSHA1Name(File destFolder, Commit c) {
-        File tempFile = join(destFolder, "temp");
-        writeObject(tempFile, c);
-        String fileContents = readContentsAsString(tempFile);
-        String hash = sha1(fileContents);
+        byte[] contents = c.encode();
+        String hash = sha1(contents);
+        // The temporary name is unique to the commit, and its contents reach the disk
+        // before the rename makes the commit visible.
+        File tempFile = join(destFolder, hash + ".tmp");
+        Journal.writeSynced(tempFile, compress(contents, ObjectStore.codec()));
         File fileNewName = join(destFolder, hash);
         // rename the file to its hash
         tempFile.renameTo(fileNewName);
+        CommitGraph.get().add(hash, c);
+        CommitIndex.get().add(hash);
+        MessageIndex.add(hash, c.getMessage());
+        CommitList.add(hash, c.getTimestamp().getTime());
         return hash;
     }
 
@@ -121,59 +144,105 @@ public class Repository {
      * @return The file SHA1 hash.
      */
     public static String copyFileToSHA1Name(File destFolder, File f) {
-        String fileContents = readContentsAsString(f);
-        String hash = sha1(fileContents);
+        return copyFileToSHA1Name(destFolder, f, null);
+    }
+
+    /**
+     * Copy the file to the destination folder, or store it as a delta against
+     * the previous version of the same file when the delta storage mode is on,
+     * or as chunks when the chunked storage mode is on.
+     * Return the SHA1 hash.
+     *
+     * @param destFolder The destination folder.
+     * @param baseHash   The blob of the previous version of the file, or null.
+     * @return The file SHA1 hash.
+     */
+    public static String copyFileToSHA1Name(File destFolder, File f, String baseHash) {
+        String hash = sha1(f);
+        storeBlob(destFolder, f, hash, baseHash);
+        return hash;
+    }
+
+    /**
+     * Store the file whose SHA1 hash is already known as a blob in the destination folder,
+     * unless the blob already exists.
+     *
+     * @param destFolder The destination folder.
+     * @param f          The file to store.
+     * @param hash       The SHA1 hash of the file.
+     * @param baseHash   The blob of the previous version of the file, or null.
+     */
+    public static void storeBlob(File destFolder, File f, String hash, String baseHash) {
         File fileNewName = join(destFolder, hash);
-        // if the fileBlob already exists, return its hash directly
-        if (fileNewName.exists()) {
-            return hash;
+        // if the fileBlob already exists, loose, packed or as a delta, there is nothing to do
+        if (ObjectStore.hasBlob(hash)) {
+            return;
+        }
+        if (ObjectStore.writeDelta(hash, f, baseHash) || ObjectStore.writeChunked(hash, f)) {
+            return;
         }
-        // Copy the file to the destFolder and rename to it hash.
-        // This will not replace the file if it exits.
+        // Compress the file to a temporary name in the destFolder, sync it
+        // and rename it to its hash.
+        File tempFile = ObjectStore.tempFile(destFolder, hash);
         try {
-            Files.copy(f.toPath(), fileNewName.toPath());
-        } catch (IOException e) {
-            e.printStackTrace();
+            compress(f, tempFile, ObjectStore.codec());
+            Journal.syncFile(tempFile);
+            Files.move(tempFile.toPath(), fileNewName.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            // Staging a blob that was never written would break the next commit.
+            tempFile.delete();
+            throw error("Cannot write files: %s", e.getMessage());
         }
-        return hash;
     }
 
     /**
-     * Read the static variables from their corresponding files.
-     * This is used before any function that requires these variables.
+     * Read the static variables from the RepoContext of this command.
+     * The files are only read the first time; later calls see the values
+     * saved since then. This is used before any function that requires these variables.
      */
     public static void readStaticVariables() {
-        branchesMap = readObject(branchesFile, HashMap.class);
-        activeBranchName = readContentsAsString(activeBranchFile);
-        headID = readContentsAsString(headFile);
+        RepoContext context = RepoContext.get();
+        context.load();
+        branchesMap = context.branches();
+        activeBranchName = context.activeBranch();
+        headID = context.headID();
         headCommit = readCommitFromFile(headID);
-        addFileMap = readObject(addFile, HashMap.class);
-        rmFileMap = readObject(rmFile, HashMap.class);
+        addFileMap = context.addFiles();
+        rmFileMap = context.rmFiles();
         headCommitBlobs = headCommit.getBlobs();
     }
 
     /**
-     * Write the static variable files contents to the corresponding files.
+     * Save the static variables to the RepoContext of this command.
+     * The files are written once by flush when the command is done.
      */
     public static void saveStaticVariableFiles() {
-        writeObject(branchesFile, branchesMap);
-        writeContents(headFile, headID);
-        writeContents(activeBranchFile, activeBranchName);
-        writeObject(addFile, addFileMap);
-        writeObject(rmFile, rmFileMap);
+        RepoContext.get().update(branchesMap, headID, activeBranchName, addFileMap, rmFileMap);
     }
 
     /**
-     * Read from the file in COMMITS_DIR to a Commit object.
+     * Write the static variable files that changed during this command, and the stat cache.
+     */
+    public static void flush() {
+        RepoContext.get().flush();
+    }
+
+    /**
+     * Get the stat cache of working files, reading it on first use.
+     *
+     * @return The StatIndex object.
+     */
+    public static StatIndex statIndex() {
+        return RepoContext.get().statIndex();
+    }
+
+    /**
+     * Read from the file in COMMITS_DIR, or from a pack, to a Commit object.
      * The file name is commitID in String.
+     * Commits are kept by the CommitCache, so a commit read again is not decoded again.
      */
     public static Commit readCommitFromFile(String commitID) {
-        File f = join(COMMITS_DIR, commitID);
-        if (!f.exists()) {
-            return null;
-        }
-        Commit c = readObject(f, Commit.class);
-        return c;
+        return RepoContext.get().commit(commitID);
     }
 
     /**
@@ -187,7 +256,8 @@ public class Repository {
                 append("headID: ").append(headID + "\n").
                 append("headCommit: \n").append(headCommit + "\n").
                 append("addFilesMap: ").append(addFileMap + "\n").
-                append("rmFilesMap: ").append(rmFileMap + "\n");
+                append("rmFilesMap: ").append(rmFileMap + "\n").
+                append("commitCache: ").append(CommitCache.stats() + "\n");
         System.out.println(s);
     }
 
@@ -198,17 +268,180 @@ public class Repository {
      * @param fileName The file to be staged for add.
      */
     public static void add(String fileName) {
-        File f = join(CWD, fileName);
-        if (!f.exists()) {
-            System.out.println("File does not exist.");
-            System.exit(0);
+        add(List.of(fileName), false);
+    }
+
+    /**
+     * Stage many files at once: the named files, every file under the named
+     * directories, or every file of the working tree. Tracked files missing
+     * under a named directory, or anywhere with all, are staged for removal.
+     *
+     * The files whose stat data changed are hashed by a bounded pool of threads,
+     * then the new blobs are written by the pool, each distinct blob once, and
+     * the staging area is saved once for the whole batch.
+     *
+     * @param paths The files and directories to stage.
+     * @param all   Whether to stage the whole working tree, as add -A.
+     */
+    public static void add(Collection<String> paths, boolean all) {
+        readStaticVariables();
+        Set<String> tracked = new TreeSet<>(addFileMap.keySet());
+        if (headCommitBlobs != null) {
+            tracked.addAll(headCommitBlobs.keySet());
+        }
+
+        // Collect the files to stage with their stat data, and the directories
+        // in which vanished tracked files are staged for removal.
+        TreeMap<String, BasicFileAttributes> files = new TreeMap<>();
+        List<String> scopes = new ArrayList<>();
+        TreeMap<String, BasicFileAttributes> walked = null;
+        if (all) {
+            scopes.add("");
+        }
+        for (String path : paths) {
+            String name = WorkingTree.trackedName(CWD, path);
+            File f = name == null ? null : join(CWD, name);
+            if (f != null && f.isFile()) {
+                files.put(name, StatIndex.stat(f));
+            } else if (f != null && f.isDirectory() || isWorkingDirectory(path)) {
+                scopes.add(name == null ? "" : name + "/");
+            } else {
+                throw error("File does not exist.");
+            }
+        }
+        if (!scopes.isEmpty()) {
+            walked = WorkingTree.walk(CWD);
+        }
+        for (String scope : scopes) {
+            files.putAll(walked.subMap(scope, scope + Character.MAX_VALUE));
+            // Ignore rules only hide untracked files.
+            for (String name : tracked) {
+                File f = join(CWD, name);
+                if (name.startsWith(scope) && !files.containsKey(name) && f.isFile()) {
+                    files.put(name, StatIndex.stat(f));
+                }
+            }
         }
 
-        // This will not copy the file if the fileBlob with the same hash name already exits.
-        String hash = copyFileToSHA1Name(BLOBS_DIR, f);
+        Map<String, String> hashes = hashFiles(files);
+        storeBlobs(hashes);
 
-        readStaticVariables();
+        for (Map.Entry<String, String> entry : hashes.entrySet()) {
+            stage(entry.getKey(), entry.getValue());
+        }
+        for (String scope : scopes) {
+            for (String name : tracked) {
+                if (name.startsWith(scope) && !join(CWD, name).isFile()) {
+                    addFileMap.remove(name);
+                    if (headCommitBlobs != null && headCommitBlobs.containsKey(name)) {
+                        rmFileMap.put(name, headCommitBlobs.get(name));
+                    }
+                    statIndex().remove(name);
+                }
+            }
+        }
+        saveStaticVariableFiles();
+    }
 
+    /**
+     * Hash working files, using a bounded pool of threads for the files
+     * whose stat data changed. The stat cache is only used on this thread.
+     *
+     * @param files The files in the format of fileName : stat data.
+     * @return The hashes in the format of fileName : fileHash.
+     */
+    private static Map<String, String> hashFiles(Map<String, BasicFileAttributes> files) {
+        TreeMap<String, String> hashes = new TreeMap<>();
+        List<String> changed = new ArrayList<>();
+        for (Map.Entry<String, BasicFileAttributes> entry : files.entrySet()) {
+            String hash = statIndex().cachedHash(entry.getKey(), entry.getValue());
+            if (hash != null) {
+                hashes.put(entry.getKey(), hash);
+            } else {
+                changed.add(entry.getKey());
+            }
+        }
+        if (changed.isEmpty()) {
+            return hashes;
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(
+                Math.min(FILE_THREADS, changed.size()));
+        List<Future<String>> results = new ArrayList<>();
+        for (String fileName : changed) {
+            File f = join(CWD, fileName);
+            results.add(pool.submit(() -> sha1(f)));
+        }
+        pool.shutdown();
+        try {
+            for (int i = 0; i < changed.size(); i += 1) {
+                String fileName = changed.get(i);
+                String hash = results.get(i).get();
+                statIndex().record(fileName, files.get(fileName), hash);
+                hashes.put(fileName, hash);
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw error("Cannot read files: %s", e.getMessage());
+        }
+        return hashes;
+    }
+
+    /**
+     * Write the blobs of many working files at once, with a bounded pool
+     * of threads. Files with the same contents are written once, and
+     * blobs the store already has are skipped.
+     *
+     * @param hashes The files in the format of fileName : fileHash.
+     */
+    private static void storeBlobs(Map<String, String> hashes) {
+        // One file for each new blob, with the head commit's version of it as delta base.
+        Map<String, String> newBlobs = new HashMap<>();
+        for (Map.Entry<String, String> entry : hashes.entrySet()) {
+            if (!ObjectStore.hasBlob(entry.getValue())) {
+                newBlobs.putIfAbsent(entry.getValue(), entry.getKey());
+            }
+        }
+        if (newBlobs.isEmpty()) {
+            return;
+        }
+
+        // Load the packs and settings before the threads share them.
+        ObjectStore.packs();
+        ObjectStore.codec();
+        ExecutorService pool = Executors.newFixedThreadPool(
+                Math.min(FILE_THREADS, newBlobs.size()));
+        List<Future<?>> results = new ArrayList<>();
+        for (Map.Entry<String, String> entry : newBlobs.entrySet()) {
+            String hash = entry.getKey();
+            String fileName = entry.getValue();
+            String baseHash = headCommitBlobs == null ? null : headCommitBlobs.get(fileName);
+            results.add(pool.submit(() ->
+                    storeBlob(BLOBS_DIR, join(CWD, fileName), hash, baseHash)));
+        }
+        pool.shutdown();
+        try {
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } catch (ExecutionException e) {
+            // storeBlob already says which file could not be written.
+            if (e.getCause() instanceof GitletException) {
+                throw (GitletException) e.getCause();
+            }
+            throw error("Cannot write files: %s", e.getCause().getMessage());
+        } catch (InterruptedException e) {
+            throw error("Cannot write files: %s", e.getMessage());
+        }
+    }
+
+    /**
+     * Stage a working file with the given hash for add, or unstage it
+     * if it is back to its version in the head commit.
+     *
+     * @param fileName The file name relative to CWD.
+     * @param hash     The hash of the file contents.
+     */
+    private static void stage(String fileName, String hash) {
         // Update addFileMap
         if (headCommitBlobs != null && headCommitBlobs.containsKey(fileName)
                 && headCommitBlobs.get(fileName).equals(hash)) {
@@ -223,8 +456,6 @@ public class Repository {
         if (rmFileMap.containsKey(fileName)) {
             rmFileMap.remove(fileName);
         }
-
-        saveStaticVariableFiles();
     }
 
     /**
@@ -234,19 +465,16 @@ public class Repository {
      */
     public static void rmFile(String fileName) {
         readStaticVariables();
+        fileName = trackedName(fileName);
 
         if (addFileMap != null && addFileMap.containsKey(fileName)) {
             addFileMap.remove(fileName);
         } else if (headCommitBlobs != null && headCommitBlobs.containsKey(fileName)) {
             String hash = headCommitBlobs.get(fileName);
             rmFileMap.put(fileName, hash);
-            File f = join(CWD, fileName);
-            if (f.exists()) {
-                restrictedDelete(f);
-            }
+            deleteFromCWD(fileName);
         } else {
-            System.out.println("No reason to remove the file.");
-            System.exit(0);
+            throw error("No reason to remove the file.");
         }
 
         saveStaticVariableFiles();
@@ -266,13 +494,11 @@ public class Repository {
         Commit newCommit = new Commit(headID, headCommit);
 
         if (addFileMap.isEmpty() && rmFileMap.isEmpty()) {
-            System.out.println("No changes added to the commit.");
-            System.exit(0);
+            throw error("No changes added to the commit.");
         }
 
         if (message == null || message.isEmpty()) {
-            System.out.println("Please enter a commit message.");
-            System.exit(0);
+            throw error("Please enter a commit message.");
         }
 
         // Add additional parentID. Used for merge function.
@@ -283,26 +509,20 @@ public class Repository {
         // Update message in the Commit object.
         newCommit.setMessage(message);
 
-        // Update fileBlobs of the Commit instance variable.
-        HashMap<String, String> newFileBlobs = new HashMap<>();
-
-        if (headCommitBlobs != null) {
-            for (Map.Entry<String, String> entry : headCommitBlobs.entrySet()) {
-                String fileName = entry.getKey();
-                String fileHash = entry.getValue();
-                if (!rmFileMap.containsKey(fileName)) {
-                    newFileBlobs.put(fileName, fileHash);
-                }
-            }
+        // Update the tree of the Commit with the staged changes.
+        // Only the trees on the paths of changed files are written.
+        HashMap<String, String> changes = new HashMap<>();
+        for (String fileName : rmFileMap.keySet()) {
+            changes.put(fileName, null);
         }
+        changes.putAll(addFileMap);
 
-        for (Map.Entry<String, String> entry : addFileMap.entrySet()) {
-            String fileName = entry.getKey();
-            String fileHash = entry.getValue();
-            newFileBlobs.put(fileName, fileHash);
+        String baseTreeID = headCommit.getTreeID();
+        if (baseTreeID == null && headCommitBlobs != null) {
+            // The head commit stores its files inline, so its tree is built once in full.
+            baseTreeID = Tree.write(headCommitBlobs);
         }
-
-        newCommit.setBlobs(newFileBlobs);
+        newCommit.setTreeID(Tree.update(baseTreeID, changes));
 
         // Save commit object to the folder.
         String newCommitID = saveCommitToSHA1Name(COMMITS_DIR, newCommit);
@@ -323,61 +543,130 @@ public class Repository {
 
     /**
      * Print the log history of the headCommit.
+     * The first parents are followed through the commit-graph,
+     * so commits are only read to be printed, and each commit is written
+     * to a buffered stdout as soon as it is visited.
+     *
+     * @param maxCount The largest number of commits to show, or null for all of them.
+     * @param since    Only commits made at or after this date are shown, or null for all.
+     *                 The walk stops at the first older commit.
      */
-    public static void showLocalLog() {
+    public static void showLocalLog(String maxCount, String since) {
         readStaticVariables();
-        StringJoiner log = new StringJoiner("\n");
-
-        Commit cur = headCommit;
-        String curID = headID;
-        while (cur != null) {
-            log.add(cur.toString(curID));
-            ArrayList<String> parentCommitIDs = cur.getParentCommitIDs();
-            if (parentCommitIDs == null) {
-                break;
-            }
-            String firstParentID = parentCommitIDs.get(0);
-            curID = firstParentID;
-            cur = readCommitFromFile(firstParentID);
+        int limit = parseMaxCount(maxCount);
+        long sinceMillis = parseSince(since);
+
+        PrintStream out = bufferedStdout();
+        CommitGraph graph = CommitGraph.get();
+        int cur = graph.position(headID);
+        for (int shown = 0; cur >= 0 && shown < limit
+                && graph.timestamp(cur) >= sinceMillis; shown += 1) {
+            String curID = graph.id(cur);
+            out.print(readCommitFromFile(curID).toString(curID));
+            out.print("\n");
+            int[] parents = graph.parents(cur);
+            cur = parents.length == 0 ? -1 : parents[0];
         }
+        out.flush();
 
         saveStaticVariableFiles();
-        System.out.println(log);
     }
 
     /**
-     * Show all commits in no particular order.
+     * Parse the -n option of log commands.
+     *
+     * @param maxCount The option value, or null if it is absent.
+     * @return The largest number of commits to show.
      */
-    public static void showGlobalLog() {
-        StringJoiner log = new StringJoiner("\n");
-        List<String> commitIDs = plainFilenamesIn(COMMITS_DIR);
-        for (String commitID : commitIDs) {
-            Commit c = readCommitFromFile(commitID);
-            log.add(c.toString(commitID));
+    private static int parseMaxCount(String maxCount) {
+        if (maxCount == null) {
+            return Integer.MAX_VALUE;
         }
-        System.out.println(log);
+        try {
+            int limit = Integer.parseInt(maxCount);
+            if (limit >= 0) {
+                return limit;
+            }
+        } catch (NumberFormatException e) {
+            // Reported below.
+        }
+        throw error("Incorrect operands.");
     }
 
     /**
-     * Show all commits in the order of timestamp.
+     * Parse the --since option of log commands, either a date like 2021-03-01
+     * or a local date and time like 2021-03-01T14:30:00.
+     *
+     * @param since The option value, or null if it is absent.
+     * @return The earliest timestamp to show in milliseconds.
      */
-    public static void showGlobalLogInOrder() {
-        Map<Commit, String> commitMap = new TreeMap<>(Collections.reverseOrder());
-        List<String> commitIDs = plainFilenamesIn(COMMITS_DIR);
-
-        for (String commitID : commitIDs) {
-            Commit c = readCommitFromFile(commitID);
-            commitMap.put(c, commitID);
+    private static long parseSince(String since) {
+        if (since == null) {
+            return Long.MIN_VALUE;
+        }
+        try {
+            LocalDateTime time = since.contains("T")
+                    ? LocalDateTime.parse(since) : LocalDate.parse(since).atStartOfDay();
+            return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            throw error("Incorrect operands.");
         }
+    }
+
+    /**
+     * Get a buffered stream to stdout for printing long histories.
+     * The caller must flush it when done. It writes through System.out,
+     * which is the client connection when the daemon runs the command.
+     *
+     * @return The PrintStream object.
+     */
+    private static PrintStream bufferedStdout() {
+        return new PrintStream(new BufferedOutputStream(System.out, 1 << 16), false);
+    }
+
+    /**
+     * Show all commits in the order of timestamp, newest first.
+     * The commits come lazily from a merge of the histories of all branch tips
+     * and dangling commits in the commit-graph, or from the date-sorted commit list
+     * if there is no commit-graph, and each one is only read when it is printed.
+     *
+     * @param maxCount The largest number of commits to show, or null for all of them.
+     * @param since    Only commits made at or after this date are shown, or null for all.
+     */
+    public static void showGlobalLogInOrder(String maxCount, String since) {
+        int limit = parseMaxCount(maxCount);
+        long sinceMillis = parseSince(since);
+
+        Iterator<String> commitIDs;
+        if (CommitGraph.GRAPH_FILE.isFile()) {
+            CommitGraph graph = CommitGraph.get();
+            Iterator<Integer> positions = graph.newestFirst();
+            commitIDs = new Iterator<>() {
+                @Override
+                public boolean hasNext() {
+                    return positions.hasNext();
+                }
 
-        StringJoiner s = new StringJoiner("\n");
-        for (Map.Entry<Commit, String> entry : commitMap.entrySet()) {
-            Commit c = entry.getKey();
-            String id = entry.getValue();
-            s.add(c.toString(id));
+                @Override
+                public String next() {
+                    return graph.id(positions.next());
+                }
+            };
+        } else {
+            commitIDs = CommitList.newestFirst();
         }
 
-        System.out.println(s);
+        PrintStream out = bufferedStdout();
+        for (int shown = 0; shown < limit && commitIDs.hasNext(); shown += 1) {
+            String id = commitIDs.next();
+            Commit c = readCommitFromFile(id);
+            if (c.getTimestamp().getTime() < sinceMillis) {
+                break;
+            }
+            out.print(c.toString(id));
+            out.print("\n");
+        }
+        out.flush();
     }
 
 
@@ -387,19 +676,40 @@ public class Repository {
      * @param message
      */
     public static void findCommitFromMessage(String message) {
-        StringBuilder relatedCommits = new StringBuilder();
-        List<String> commitIDs = plainFilenamesIn(COMMITS_DIR);
+        printFoundCommits(MessageIndex.findExact(message));
+    }
 
+    /**
+     * Find all commit IDs whose message has the provided word, ignoring case.
+     *
+     * @param word The word to look for.
+     */
+    public static void findCommitFromToken(String word) {
+        printFoundCommits(MessageIndex.findToken(word));
+    }
+
+    /**
+     * Find all commit IDs whose message contains the provided text.
+     *
+     * @param text The text to look for.
+     */
+    public static void findCommitFromSubstring(String text) {
+        printFoundCommits(MessageIndex.findSubstring(text));
+    }
+
+    /**
+     * Print the commit IDs found by the message index, one per line.
+     *
+     * @param commitIDs The commit IDs.
+     */
+    private static void printFoundCommits(List<String> commitIDs) {
+        StringBuilder relatedCommits = new StringBuilder();
         for (String commitID : commitIDs) {
-            Commit c = readCommitFromFile(commitID);
-            if (c.getMessage().equals(message)) {
-                relatedCommits.append(commitID).append("\n");
-            }
+            relatedCommits.append(commitID).append("\n");
         }
 
         if (relatedCommits == null || relatedCommits.length() == 0) {
-            System.out.println("Found no commit with that message.");
-            System.exit(0);
+            throw error("Found no commit with that message.");
         }
 
         System.out.println(relatedCommits);
@@ -438,9 +748,13 @@ public class Repository {
         }
         output.append("\n");
 
+        // One walk of the working tree, down to any depth, serves both sections below.
+        TreeMap<String, BasicFileAttributes> workingFiles = WorkingTree.walk(CWD);
+
         // Add modified files but not staged for commit.
         output.append("=== Modifications Not Staged For Commit ===\n");
-        TreeMap<String, String> modifiedButNotTrackedFiles = getModifiedButNotTrackedFiles();
+        TreeMap<String, String> modifiedButNotTrackedFiles =
+                getModifiedButNotTrackedFiles(workingFiles);
         for (Map.Entry<String, String> entry : modifiedButNotTrackedFiles.entrySet()) {
             String name = entry.getKey();
             String marker = entry.getValue();
@@ -454,10 +768,8 @@ public class Repository {
 
         // Add untracked file names.
         output.append("=== Untracked Files ===\n");
-        List<String> fileNames = plainFilenamesIn(CWD);
-        for (String fileName : fileNames) {
-            File f = join(CWD, fileName);
-            if (f.exists() && !addFileMap.containsKey(fileName)
+        for (String fileName : workingFiles.keySet()) {
+            if (!addFileMap.containsKey(fileName)
                     && (headCommitBlobs == null || !headCommitBlobs.containsKey(fileName))) {
                 output.append(fileName).append("\n");
             }
@@ -470,18 +782,22 @@ public class Repository {
      * Get file names in a TreeSet if they are modified,
      * but not tracked.
      *
+     * Files are only rehashed if their stat data changed since they were last hashed.
+     * The static variables must already be read.
+     *
+     * @param workingFiles The working files found by WorkingTree.walk, whose stat data
+     *                     is used instead of reading it again.
      * @return The TreeSet of the filtered file names.
      */
-    public static TreeMap<String, String> getModifiedButNotTrackedFiles() {
-        readStaticVariables();
+    public static TreeMap<String, String> getModifiedButNotTrackedFiles(
+            Map<String, BasicFileAttributes> workingFiles) {
         TreeMap<String, String> modifiedButNotTrackedFiles = new TreeMap();
         // Files that were committed before which now are changed but not staged in addFileMap.
         if (headCommitBlobs != null) {
             for (String fileName : headCommitBlobs.keySet()) {
                 File f = join(CWD, fileName);
                 if (f.exists()) {
-                    String currentContent = readContentsAsString(f);
-                    String currentContentHash = sha1(currentContent);
+                    String currentContentHash = workingHash(fileName, workingFiles);
                     String commitContentHash = headCommitBlobs.get(fileName);
                     if (!addFileMap.containsKey(fileName)
                             && !currentContentHash.equals(commitContentHash)) {
@@ -493,8 +809,12 @@ public class Repository {
         // Files that were staged before which now are changed after being staged.
         if (!addFileMap.isEmpty()) {
             for (String fileName : addFileMap.keySet()) {
-                String currentContent = readContentsAsString(join(CWD, fileName));
-                String currentContentHash = sha1(currentContent);
+                File f = join(CWD, fileName);
+                if (!f.exists()) {
+                    modifiedButNotTrackedFiles.put(fileName, "deleted");
+                    continue;
+                }
+                String currentContentHash = workingHash(fileName, workingFiles);
                 String stagedContentHash = addFileMap.get(fileName);
                 if (!currentContentHash.equals(stagedContentHash)) {
                     modifiedButNotTrackedFiles.put(fileName, "modified");
@@ -515,31 +835,187 @@ public class Repository {
     }
 
     /**
-     * Change the file's contens according to its snapshot in the provided commitID.
+     * Get the hash of a working file through the stat cache, using the stat data
+     * of the walk if the walk found the file. Ignored files are not walked.
      *
-     * @param commitID The specific Commit's hash id.
-     * @param fileName The file name in CWD.
+     * @param fileName     The file name relative to CWD.
+     * @param workingFiles The working files found by WorkingTree.walk.
+     * @return The SHA1 hash of the file contents.
      */
-    public static void checkoutCommitSpecificFile(String commitID, String fileName) {
-        List<String> commitFileNames = plainFilenamesIn(COMMITS_DIR);
+    private static String workingHash(String fileName,
+                                      Map<String, BasicFileAttributes> workingFiles) {
+        File f = join(CWD, fileName);
+        BasicFileAttributes attrs = workingFiles.get(fileName);
+        return attrs != null ? statIndex().hash(fileName, f, attrs) : statIndex().hash(fileName, f);
+    }
+
+    /**
+     * Show the changes of the working files that are not staged yet.
+     */
+    public static void showUnstagedDiff() {
+        readStaticVariables();
+        HashMap<String, String> staged = stagedFiles();
+        printDiffs(workingChanges(staged, staged), true);
+    }
 
-        String targetCommitID = null;
-        for (String commitFileName : commitFileNames) {
-            if (commitFileName.startsWith(commitID) || commitFileName.equals(commitID)) {
-                targetCommitID = commitFileName;
+    /**
+     * Show the changes staged for the next commit.
+     */
+    public static void showStagedDiff() {
+        readStaticVariables();
+        TreeMap<String, String[]> changes = new TreeMap<>();
+        for (Map.Entry<String, String> entry : addFileMap.entrySet()) {
+            String oldHash = headCommitBlobs == null ? null : headCommitBlobs.get(entry.getKey());
+            if (!entry.getValue().equals(oldHash)) {
+                changes.put(entry.getKey(), new String[]{oldHash, entry.getValue()});
             }
         }
+        for (Map.Entry<String, String> entry : rmFileMap.entrySet()) {
+            changes.put(entry.getKey(), new String[]{entry.getValue(), null});
+        }
+        printDiffs(changes, false);
+    }
 
-        if (targetCommitID == null) {
-            System.out.println("No commit with that id exists.");
-            System.exit(0);
+    /**
+     * Show the changes from a commit to the working files.
+     *
+     * @param commitID The full or abbreviated commit id.
+     */
+    public static void showCommitDiff(String commitID) {
+        readStaticVariables();
+        Commit c = readCommitFromFile(resolveCommitID(commitID));
+        HashMap<String, String> commitFiles = c.getBlobs();
+        printDiffs(workingChanges(commitFiles == null ? new HashMap<>() : commitFiles,
+                stagedFiles()), true);
+    }
+
+    /**
+     * Show the changes between two commits.
+     * Only the files whose blob hash differs are read.
+     *
+     * @param fromID The full or abbreviated id of the old commit.
+     * @param toID   The full or abbreviated id of the new commit.
+     */
+    public static void showCommitsDiff(String fromID, String toID) {
+        readStaticVariables();
+        Commit from = readCommitFromFile(resolveCommitID(fromID));
+        Commit to = readCommitFromFile(resolveCommitID(toID));
+        HashMap<String, String> fromFiles = from.getBlobs();
+        TreeMap<String, String[]> changes = new TreeMap<>();
+        for (Map.Entry<String, String> entry : diffCommits(from, to).entrySet()) {
+            String oldHash = fromFiles == null ? null : fromFiles.get(entry.getKey());
+            changes.put(entry.getKey(), new String[]{oldHash, entry.getValue()});
+        }
+        printDiffs(changes, false);
+    }
+
+    /**
+     * Get the files of the next commit if it were made now:
+     * the head commit files, with the staged changes applied.
+     * The static variables must already be read.
+     */
+    private static HashMap<String, String> stagedFiles() {
+        HashMap<String, String> staged = new HashMap<>();
+        if (headCommitBlobs != null) {
+            staged.putAll(headCommitBlobs);
         }
+        staged.putAll(addFileMap);
+        staged.keySet().removeAll(rmFileMap.keySet());
+        return staged;
+    }
+
+    /**
+     * Compare files with the working files tracked by the staging area.
+     * Working files are only rehashed if their stat data changed.
+     *
+     * @param from   The old files in the format of fileName : fileHash.
+     * @param staged The files tracked by the staging area.
+     * @return The changed files in the format of fileName : {old fileHash, new fileHash},
+     *         where a fileHash is null if there is no such file.
+     */
+    private static TreeMap<String, String[]> workingChanges(Map<String, String> from,
+                                                            Map<String, String> staged) {
+        TreeSet<String> fileNames = new TreeSet<>(from.keySet());
+        fileNames.addAll(staged.keySet());
+        TreeMap<String, String[]> changes = new TreeMap<>();
+        for (String fileName : fileNames) {
+            String oldHash = from.get(fileName);
+            File f = join(CWD, fileName);
+            String newHash = staged.containsKey(fileName) && f.isFile()
+                    ? statIndex().hash(fileName, f) : null;
+            if (!Objects.equals(oldHash, newHash)) {
+                changes.put(fileName, new String[]{oldHash, newHash});
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * Print the unified diff of each changed file.
+     *
+     * @param changes  The changed files in the format of fileName : {old fileHash, new fileHash},
+     *                 where a fileHash is null if there is no such file.
+     * @param newInCWD Whether the new contents are the working files rather than blobs.
+     */
+    private static void printDiffs(TreeMap<String, String[]> changes, boolean newInCWD) {
+        PrintStream out = bufferedStdout();
+        for (Map.Entry<String, String[]> entry : changes.entrySet()) {
+            String fileName = entry.getKey();
+            String oldHash = entry.getValue()[0];
+            String newHash = entry.getValue()[1];
+            byte[] oldContents = oldHash == null ? new byte[0] : RepoContext.get().blob(oldHash);
+            byte[] newContents;
+            if (newHash == null) {
+                newContents = new byte[0];
+            } else if (newInCWD) {
+                newContents = readContents(join(CWD, fileName));
+            } else {
+                newContents = RepoContext.get().blob(newHash);
+            }
+
+            String oldName = oldHash == null ? "/dev/null" : "a/" + fileName;
+            String newName = newHash == null ? "/dev/null" : "b/" + fileName;
+            if (isBinary(oldContents) || isBinary(newContents)) {
+                out.println("Binary files " + oldName + " and " + newName + " differ");
+                continue;
+            }
+            out.println("--- " + oldName);
+            out.println("+++ " + newName);
+            try {
+                LineDiff.writeHunks(oldContents, newContents, out);
+            } catch (IOException e) {
+                throw error("Cannot write diff.");
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Check whether contents look binary: they have a NUL byte in the first 8000 bytes.
+     */
+    private static boolean isBinary(byte[] contents) {
+        for (int i = 0; i < Math.min(contents.length, 8000); i += 1) {
+            if (contents[i] == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Change the file's contens according to its snapshot in the provided commitID.
+     *
+     * @param commitID The specific Commit's hash id.
+     * @param fileName The file name in CWD.
+     */
+    public static void checkoutCommitSpecificFile(String commitID, String fileName) {
+        String targetCommitID = resolveCommitID(commitID);
+        fileName = trackedName(fileName);
 
         Commit c = readCommitFromFile(targetCommitID);
         HashMap<String, String> fileBlobs = c.getBlobs();
         if (!fileBlobs.containsKey(fileName)) {
-            System.out.println("File does not exist in that commit.");
-            System.exit(0);
+            throw error("File does not exist in that commit.");
         }
 
         String fileHash = fileBlobs.get(fileName);
@@ -548,6 +1024,32 @@ public class Repository {
         copyFromBlobToCWD(fileName, fileHash);
     }
 
+    /**
+     * Expand a full or abbreviated commit id to the full commit id
+     * through the sorted commit id index. A full id the index lacks is
+     * looked up in the object store and added to the index.
+     * Exit if no commit, or more than one commit, has that id.
+     *
+     * @param commitID The full or abbreviated commit id.
+     * @return The full commit id.
+     */
+    public static String resolveCommitID(String commitID) {
+        List<String> matches = CommitIndex.get().resolve(commitID, 2);
+        String id = commitID.toLowerCase();
+        if (matches.isEmpty() && isHexID(id)
+                && ObjectStore.contains(ObjectStore.Kind.COMMIT, id)) {
+            // A commit the index missed, for example after a crash: record it now.
+            CommitIndex.get().add(id);
+            return id;
+        }
+        if (matches.isEmpty()) {
+            throw error("No commit with that id exists.");
+        } else if (matches.size() > 1) {
+            throw error("Commit id is ambiguous.");
+        }
+        return matches.get(0);
+    }
+
     /**
      * Change a file's content according to the headCommit.
      *
@@ -567,13 +1069,11 @@ public class Repository {
         readStaticVariables();
 
         if (!branchesMap.keySet().contains(branchName)) {
-            System.out.println("No such branch exists.");
-            System.exit(0);
+            throw error("No such branch exists.");
         }
 
         if (branchName.equals(activeBranchName)) {
-            System.out.println("No need to checkout the current branch.");
-            System.exit(0);
+            throw error("No need to checkout the current branch.");
         }
 
         // Copy files from the branch head Commit to CWD
@@ -598,8 +1098,7 @@ public class Repository {
     public static void createBranch(String branchName) {
         readStaticVariables();
         if (branchesMap.containsKey(branchName)) {
-            System.out.println("A branch with that name already exists.");
-            System.exit(0);
+            throw error("A branch with that name already exists.");
         }
         branchesMap.put(branchName, headID);
         saveStaticVariableFiles();
@@ -613,13 +1112,11 @@ public class Repository {
     public static void rmBranch(String branchName) {
         readStaticVariables();
         if (branchName.equals(activeBranchName)) {
-            System.out.println("Cannot remove the current branch.");
-            System.exit(0);
+            throw error("Cannot remove the current branch.");
         }
 
         if (!branchesMap.containsKey(branchName)) {
-            System.out.println("A branch with that name does not exist.");
-            System.exit(0);
+            throw error("A branch with that name does not exist.");
         }
 
         branchesMap.remove(branchName);
@@ -634,6 +1131,7 @@ public class Repository {
      */
     public static void resetCommit(String preCommitID) {
         readStaticVariables();
+        preCommitID = resolveCommitID(preCommitID);
         resetCommitFiles(preCommitID);
 
         // Update head pointer
@@ -647,6 +1145,9 @@ public class Repository {
 
     /**
      * Helper function to change CWD contens based on the provided commit id.
+     * Only the files that differ between the head commit and the target commit are touched:
+     * files tracked only by the head commit are deleted, and files whose blob differs,
+     * or whose working copy no longer matches the head commit, are written concurrently.
      *
      * @param preCommitID The target commit object hash id.
      */
@@ -655,36 +1156,111 @@ public class Repository {
 
         Commit preCommit = readCommitFromFile(preCommitID);
         if (preCommit == null) {
-            System.out.println("No commit with that id exists.");
-            System.exit(0);
-        }
-
-        if (preCommitID == headID) {
-            return;
+            throw error("No commit with that id exists.");
         }
 
-        handleUntrackedFileOverwritten(headID, preCommitID);
-
-        HashMap<String, String> curCommitBlobs = headCommitBlobs;
+        // A reset to the head commit still restores the changed working copies below.
         HashMap<String, String> preCommitBlobs = preCommit.getBlobs();
+        Map<String, String> diff = diffCommits(headCommit, preCommit);
+        checkUntrackedFiles(headCommit, diff);
 
-        // Delete files in CWD that are already committed in the head commit
-        if (curCommitBlobs != null) {
-            for (String fileName : curCommitBlobs.keySet()) {
-                restrictedDelete(join(CWD, fileName));
+        // Delete files in CWD that are committed in the head commit but not in the preCommit,
+        // and collect the files whose blob differs between the two commits.
+        Map<String, String> changedFiles = new HashMap<>();
+        for (Map.Entry<String, String> entry : diff.entrySet()) {
+            String fileName = entry.getKey();
+            if (entry.getValue() == null) {
+                deleteFromCWD(fileName);
+            } else {
+                changedFiles.put(fileName, entry.getValue());
             }
         }
 
-        // Copy files from the preCommit blobs to CWD
+        // Also restore files with the same blob whose working copy was changed.
         if (preCommitBlobs != null) {
             for (Map.Entry<String, String> entry : preCommitBlobs.entrySet()) {
                 String fileName = entry.getKey();
                 String fileHash = entry.getValue();
-                // copy the file to the CWD and rename to its name
-                // overwrite if it already exists
-                copyFromBlobToCWD(fileName, fileHash);
+                if (!diff.containsKey(fileName)
+                        && !statIndex().isUnchanged(fileName, join(CWD, fileName), fileHash)) {
+                    changedFiles.put(fileName, fileHash);
+                }
             }
         }
+        copyBlobsToCWD(changedFiles);
+    }
+
+    /**
+     * Find the files that differ between two commits.
+     * When both commits store their files as trees, identical subtrees are skipped.
+     *
+     * @param from The old Commit object.
+     * @param to   The new Commit object.
+     * @return The changed files in the format of fileName : fileHash in the new commit,
+     *         where the fileHash is null if the new commit does not have the file.
+     */
+    public static Map<String, String> diffCommits(Commit from, Commit to) {
+        // The initial commit has neither blobs nor a tree, and stands for an empty tree.
+        boolean fromHasTree = from.getTreeID() != null || from.getParentCommitIDs() == null;
+        boolean toHasTree = to.getTreeID() != null || to.getParentCommitIDs() == null;
+        if (fromHasTree && toHasTree) {
+            return Tree.diff(from.getTreeID(), to.getTreeID());
+        }
+
+        // Commits written by older versions store their blobs inline.
+        Map<String, String> fromBlobs = from.getBlobs() == null ? new HashMap<>() : from.getBlobs();
+        Map<String, String> toBlobs = to.getBlobs() == null ? new HashMap<>() : to.getBlobs();
+        TreeMap<String, String> result = new TreeMap<>();
+        for (String fileName : fromBlobs.keySet()) {
+            if (!toBlobs.containsKey(fileName)) {
+                result.put(fileName, null);
+            }
+        }
+        for (Map.Entry<String, String> entry : toBlobs.entrySet()) {
+            if (!entry.getValue().equals(fromBlobs.get(entry.getKey()))) {
+                result.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Copy many file blobs to CWD at once, overwriting existing files,
+     * with a bounded pool of threads.
+     *
+     * @param files The files to write in the format of fileName : fileHash.
+     */
+    public static void copyBlobsToCWD(Map<String, String> files) {
+        if (files.size() <= 1) {
+            for (Map.Entry<String, String> entry : files.entrySet()) {
+                copyFromBlobToCWD(entry.getKey(), entry.getValue());
+            }
+            return;
+        }
+
+        // Load the packs before the threads share them.
+        ObjectStore.packs();
+        ExecutorService pool = Executors.newFixedThreadPool(
+                Math.min(FILE_THREADS, files.size()));
+        List<Future<Boolean>> results = new ArrayList<>();
+        for (Map.Entry<String, String> entry : files.entrySet()) {
+            File target = join(CWD, entry.getKey());
+            target.getParentFile().mkdirs();
+            String fileHash = entry.getValue();
+            results.add(pool.submit(() -> ObjectStore.copyBlobTo(fileHash, target)));
+        }
+        pool.shutdown();
+        try {
+            for (Future<Boolean> result : results) {
+                result.get();
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw error("Cannot check out files: %s", e.getMessage());
+        }
+
+        for (Map.Entry<String, String> entry : files.entrySet()) {
+            statIndex().record(entry.getKey(), join(CWD, entry.getKey()), entry.getValue());
+        }
     }
 
 
@@ -696,37 +1272,106 @@ public class Repository {
      * @param preCommitID The previous commit id.
      */
     public static void handleUntrackedFileOverwritten(String curCommitID, String preCommitID) {
-        List<String> filesInCWD = plainFilenamesIn(CWD);
         Commit curCommit = readCommitFromFile(curCommitID);
         Commit preCommit = readCommitFromFile(preCommitID);
+        checkUntrackedFiles(curCommit, diffCommits(curCommit, preCommit));
+    }
 
+    /**
+     * Exit if a file the current commit does not track is in CWD
+     * and would be written by a change from the current commit.
+     * Only the changed files are checked, so the cost follows the size of the diff.
+     *
+     * @param curCommit The current Commit object.
+     * @param diff      The changes from the current commit, as returned by diffCommits.
+     */
+    private static void checkUntrackedFiles(Commit curCommit, Map<String, String> diff) {
         HashMap<String, String> curCommitBlobs = curCommit.getBlobs();
-        HashMap<String, String> preCommitBlobs = preCommit.getBlobs();
-
-        // Check if there is any untracked file in CWD
-        // which exists in the preCommitBlobs
-        for (String fileName : filesInCWD) {
-            if ((curCommitBlobs == null || !curCommitBlobs.containsKey(fileName))
-                    && preCommitBlobs != null && preCommitBlobs.containsKey(fileName)) {
-                System.out.println(
-                        "There is an untracked file in the way;"
-                                + " delete it, or add and commit it first.");
-                System.exit(0);
+        for (Map.Entry<String, String> entry : diff.entrySet()) {
+            String fileName = entry.getKey();
+            if (entry.getValue() == null) {
+                continue;
+            }
+            // A file is in the way at the path itself or at one of its directories.
+            for (String path = fileName; path != null; path = parentPath(path)) {
+                if ((curCommitBlobs == null || !curCommitBlobs.containsKey(path))
+                        && join(CWD, path).isFile()) {
+                    throw error("There is an untracked file in the way;"
+                            + " delete it, or add and commit it first.");
+                }
             }
         }
     }
 
+    /**
+     * Get the directory part of a tracked file name.
+     *
+     * @param fileName The file name, with "/" between directories.
+     * @return The name of its directory, or null for a file at the top of CWD.
+     */
+    private static String parentPath(String fileName) {
+        int slash = fileName.lastIndexOf('/');
+        return slash < 0 ? null : fileName.substring(0, slash);
+    }
+
+    /**
+     * Turn a file name given on the command line into the name it is tracked by,
+     * so that "dir/../f" and "./f" mean "f".
+     *
+     * @param fileName The file name as given.
+     * @return The tracked name, or fileName itself if it is outside CWD.
+     */
+    private static String trackedName(String fileName) {
+        String name = WorkingTree.trackedName(CWD, fileName);
+        return name == null ? fileName : name;
+    }
+
+    /**
+     * Check whether a path given on the command line names CWD itself, like ".".
+     */
+    private static boolean isWorkingDirectory(String path) {
+        return CWD.toPath().toAbsolutePath().normalize().resolve(path).normalize()
+                .equals(CWD.toPath().toAbsolutePath().normalize());
+    }
+
+    /**
+     * Delete a working file and forget its stat data, then delete the
+     * directories the deletion left empty, as git does. The cleanup stops at
+     * the first parent that is not an empty directory, such as a file that
+     * replaced a tracked directory.
+     *
+     * @param fileName The file name relative to CWD.
+     */
+    private static void deleteFromCWD(String fileName) {
+        File f = join(CWD, fileName);
+        if (f.isFile()) {
+            f.delete();
+        }
+        statIndex().remove(fileName);
+        File dir = f.getParentFile();
+        while (!dir.equals(CWD) && dir.isDirectory() && dir.delete()) {
+            dir = dir.getParentFile();
+        }
+    }
+
     /**
      * Merges files from the given branch into the current branch.
+     * A full or abbreviated commit id may be given instead of a branch name.
      *
      * @param givenBranchName The branch which will be merged into the active branch.
      */
     public static void merge(String givenBranchName) {
         readStaticVariables();
 
-        if (!branchesMap.containsKey(givenBranchName)) {
-            System.out.println("A branch with that name does not exist.");
-            return;
+        String givenBranchID = branchesMap.get(givenBranchName);
+        if (givenBranchID == null) {
+            // Not a branch: accept a full or abbreviated commit id instead.
+            List<String> matches = CommitIndex.get().resolve(givenBranchName, 2);
+            if (matches.size() != 1) {
+                System.out.println("A branch with that name does not exist.");
+                return;
+            }
+            givenBranchID = matches.get(0);
         }
 
         if (!addFileMap.isEmpty() || !rmFileMap.isEmpty()) {
@@ -735,22 +1380,28 @@ public class Repository {
         }
 
         String activeBranchID = branchesMap.get(activeBranchName);
-        String givenBranchID = branchesMap.get(givenBranchName);
-        String ancestorID = findLatestCommonAncestor(activeBranchName, givenBranchName);
+        CommitGraph graph = CommitGraph.get();
 
+        // Decide the ancestor and fast-forward cases with bounded reachability
+        // queries, and only compute the merge base for a real merge.
         if (givenBranchName.equals(activeBranchName)) {
             System.out.println("Cannot merge a branch with itself.");
             return;
-        } else if (ancestorID.equals(givenBranchID)) {
+        } else if (graph.isAncestor(givenBranchID, activeBranchID)) {
             System.out.println("Given branch is an ancestor of the current branch.");
             return;
-        } else if (ancestorID.equals(activeBranchID)) {
-            checkoutBranch(givenBranchName);
+        } else if (graph.isAncestor(activeBranchID, givenBranchID)) {
+            if (branchesMap.containsKey(givenBranchName)) {
+                checkoutBranch(givenBranchName);
+            } else {
+                resetCommit(givenBranchID);
+            }
             System.out.println("Current branch fast-forwarded.");
             return;
         }
 
         handleUntrackedFileOverwritten(activeBranchID, givenBranchID);
+        String ancestorID = graph.mergeBase(activeBranchID, givenBranchID);
 
         // If the givenBranch deletes files from ancestor.
         givenBranchDeletesFiles(ancestorID, givenBranchID, activeBranchID);
@@ -810,9 +1461,9 @@ public class Repository {
             if (activeBranchBlobs.get(fileName).
                     equals(ancestorBlobs.get(fileName))) {
                 rmFileMap.put(fileName, activeBranchBlobs.get(fileName));
-                restrictedDelete(join(CWD, fileName));
+                deleteFromCWD(fileName);
             } else {
-                handleConflict(fileName, activeBranchBlobs.get(fileName), "");
+                handleConflict(fileName, null, activeBranchBlobs.get(fileName), "");
             }
         }
         saveStaticVariableFiles();
@@ -855,7 +1506,7 @@ public class Repository {
                 String hashInGiven = givenBranchBlobs.get(fileName);
                 String hashInActive = activeBranchBlobs.get(fileName);
                 if (!hashInGiven.equals(hashInActive)) {
-                    handleConflict(fileName, hashInActive, hashInGiven);
+                    handleConflict(fileName, null, hashInActive, hashInGiven);
                 }
             }
         }
@@ -906,7 +1557,7 @@ public class Repository {
                         addFileMap.put(fileName, hashInGiven);
                         copyFromBlobToCWD(fileName, hashInGiven);
                     } else {
-                        handleConflict(fileName, hashInActive, hashInGiven);
+                        handleConflict(fileName, hashInAncestor, hashInActive, hashInGiven);
                     }
                 }
             }
@@ -926,17 +1577,15 @@ public class Repository {
      */
     public static void copyFromBlobToCWD(String fileName, String fileHash) {
         File target = join(CWD, fileName);
-        File source = join(BLOBS_DIR, fileHash);
-        
-        try {
-            Files.copy(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        target.getParentFile().mkdirs();
+        ObjectStore.copyBlobTo(fileHash, target);
+        statIndex().record(fileName, target, fileHash);
     }
 
     /**
      * Find the latest common ancestor commit of two branches.
+     * The commit-graph is walked from the highest generation number down,
+     * so commits are never read and history below the ancestor is not visited.
      *
      * @param branch1 The first branch name, typically active branch in merge.
      * @param branch2 The second branch name, typically given branch in merge.
@@ -945,83 +1594,134 @@ public class Repository {
     public static String findLatestCommonAncestor(String branch1, String branch2) {
         readStaticVariables();
 
-        String ancestor = null;
-
         String branch1ID = branchesMap.get(branch1);
         String branch2ID = branchesMap.get(branch2);
 
-        // Put branch1's parent commit ids in a set
-        // Here we can use either BFS or DFS
-        Set<String> branch1Parents = new HashSet<>();
-        Deque<String> bfsQueue1 = new ArrayDeque();
-        bfsQueue1.add(branch1ID);
-
-        while (!bfsQueue1.isEmpty()) {
-            String commitID = bfsQueue1.removeFirst();
-            branch1Parents.add(commitID);
+        return CommitGraph.get().mergeBase(branch1ID, branch2ID);
+    }
 
-            Commit c = readCommitFromFile(commitID);
+    /**
+     * Handle merge conflice when the two file blobs have different content.
+     * If both branches changed a file of the ancestor, their changes are merged
+     * line by line and only the overlapping ones are written as conflicts;
+     * otherwise, or if merge.style is "file", both whole versions are.
+     *
+     * @param fileName       The name of the file under conflict.
+     * @param ancestorBlobID The blob of the fileName in the ancestor, or null if it has none.
+     * @param activeBlobID   The blob of the fileName in the active branch.
+     * @param givenBlobID    The blob of the fileName in the given branch, or "" if it has none.
+     */
+    public static void handleConflict(String fileName, String ancestorBlobID,
+                                      String activeBlobID, String givenBlobID) {
+        readStaticVariables();
 
-            ArrayList<String> parentIDs = c.getParentCommitIDs();
-            if (parentIDs != null && !parentIDs.isEmpty()) {
-                bfsQueue1.addAll(parentIDs);
-            }
+        byte[] activeVersion = RepoContext.get().blob(activeBlobID);
+        byte[] givenVersion = new byte[0];
+        if (givenBlobID.length() != 0) {
+            givenVersion = RepoContext.get().blob(givenBlobID);
         }
+        boolean byLine = ancestorBlobID != null && givenBlobID.length() != 0
+                && !Config.get(LineMerge.STYLE_KEY, "lines").equals("file");
 
-        // Trace up from branch2ID to check its parents,
-        // the first commitID which exists in branch1Parents is the latest common ancestor
-        // Here we must use BFS to check the latest parent commit which is also branch1's parent.
-
-        Deque<String> bfsQueue2 = new ArrayDeque();
-        bfsQueue2.add(branch2ID);
-
-        while (!bfsQueue2.isEmpty()) {
-            String commitID = bfsQueue2.removeFirst();
-            if (branch1Parents.contains(commitID)) {
-                ancestor = commitID;
-                break;
-            }
-
-            Commit c = readCommitFromFile(commitID);
-
-            ArrayList<String> parentIDs = c.getParentCommitIDs();
-            if (parentIDs != null && !parentIDs.isEmpty()) {
-                bfsQueue2.addAll(parentIDs);
+        File targetFile = join(CWD, fileName);
+        targetFile.getParentFile().mkdirs();
+        boolean conflict = true;
+        try (OutputStream out = new BufferedOutputStream(
+                Files.newOutputStream(targetFile.toPath()), 1 << 16)) {
+            if (byLine) {
+                byte[] ancestorVersion = RepoContext.get().blob(ancestorBlobID);
+                conflict = LineMerge.merge(ancestorVersion, activeVersion, givenVersion, out);
+            } else {
+                LineMerge.writeConflict(activeVersion, givenVersion, out);
             }
+        } catch (IOException e) {
+            throw error("Cannot write %s.", fileName);
+        }
+        if (conflict) {
+            System.out.println("Encountered a merge conflict.");
         }
+        String combinedFileID = copyFileToSHA1Name(BLOBS_DIR, targetFile, activeBlobID);
+        statIndex().record(fileName, targetFile, combinedFileID);
+        addFileMap.put(fileName, combinedFileID);
 
-        return ancestor;
+        saveStaticVariableFiles();
     }
 
     /**
-     * Handle merge conflice when the two file blobs have different content.
+     * Print or change a repository setting.
      *
-     * @param fileName     The name of the file under conflict.
-     * @param activeBlobID The blob of the fileName in the active branch.
-     * @param givenBlobID  The blob of the fileName in the given branch.
+     * @param key   The setting name.
+     * @param value The new value, or null to print the current one.
      */
-    public static void handleConflict(String fileName, String activeBlobID, String givenBlobID) {
-        readStaticVariables();
-
-        System.out.println("Encountered a merge conflict.");
-        String activeVersion = readContentsAsString(join(BLOBS_DIR, activeBlobID));
-        String givenVersion = "";
-        if (givenBlobID.length() != 0) {
-            givenVersion = readContentsAsString(join(BLOBS_DIR, givenBlobID));
+    public static void config(String key, String value) {
+        checkConfig(key, value);
+        if (value == null) {
+            System.out.println(Config.get(key, ""));
+        } else {
+            Config.set(key, value);
         }
+    }
 
-        StringBuilder result = new StringBuilder();
-        result.append("<<<<<<< HEAD\n").
-                append(activeVersion).
-                append("=======\n").
-                append(givenVersion).
-                append(">>>>>>>\n");
+    /**
+     * Check that a setting exists and that a new value is one it accepts,
+     * so a bad value is refused here instead of failing a later command.
+     *
+     * @param key   The setting name.
+     * @param value The new value, or null if the setting is only printed.
+     */
+    private static void checkConfig(String key, String value) {
+        List<String> choices;
+        switch (key) {
+            case ObjectStore.BLOB_STORAGE_KEY -> choices = List.of("full", "delta", "chunked");
+            case ObjectStore.CODEC_KEY -> choices = List.of("deflate", "lz", "none");
+            case LineMerge.STYLE_KEY -> choices = List.of("lines", "file");
+            case ObjectStore.DELTA_DEPTH_KEY, ObjectStore.DELTA_MAX_SIZE_KEY,
+                    CommitCache.BUDGET_KEY -> choices = null;
+            default -> throw error("Unknown setting %s.", key);
+        }
+        if (value == null) {
+            return;
+        }
+        if (choices != null) {
+            if (!choices.contains(value)) {
+                throw error("Invalid value for %s: use one of %s.", key, String.join(", ", choices));
+            }
+            return;
+        }
+        long number;
+        try {
+            number = Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            number = -1;
+        }
+        if (number < 0) {
+            throw error("Invalid value for %s: use a number of 0 or more.", key);
+        }
+    }
 
-        File targetFile = join(CWD, fileName);
-        writeContents(targetFile, result.toString());
-        String combinedFileID = copyFileToSHA1Name(BLOBS_DIR, targetFile);
-        addFileMap.put(fileName, combinedFileID);
+    /**
+     * Delete the objects that no branch, the head or the staging area can reach,
+     * pack the rest into a single pack file and remove the loose copies.
+     */
+    public static void gc() {
+        readStaticVariables();
+        ArrayList<String> commitRoots = new ArrayList<>(branchesMap.values());
+        commitRoots.add(headID);
+        ArrayList<String> blobRoots = new ArrayList<>(addFileMap.values());
+        blobRoots.addAll(rmFileMap.values());
+        GarbageCollector.collect(commitRoots, blobRoots);
+    }
 
-        saveStaticVariableFiles();
+    /**
+     * Check that every object hashes to its id and print the corrupt objects,
+     * the missing objects referred to and the dangling objects nothing refers to.
+     */
+    public static void fsck() {
+        readStaticVariables();
+        ArrayList<String> commitRoots = new ArrayList<>(branchesMap.values());
+        commitRoots.add(headID);
+        ArrayList<String> blobRoots = new ArrayList<>(addFileMap.values());
+        blobRoots.addAll(rmFileMap.values());
+        Fsck.check(commitRoots, blobRoots);
     }
 }
@@ -0,0 +1,213 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+
+import static gitlet.Utils.*;
+
+/**
+ * A cache of the stat data and blob hash of working files, like git's index.
+ * A file whose size, modification time and inode still match its entry
+ * is known to have the recorded hash without being read again.
+ *
+ * An entry is only trusted if the file was last modified clearly before
+ * the entry was taken. Otherwise a later write within the same timestamp
+ * granularity could leave the stat data unchanged, so such a racy entry
+ * is always rehashed.
+ *
+ * @author Guang Hou
+ */
+public class StatIndex implements Serializable {
+    /* Fixed so that a change to the class does not make the saved index unreadable. */
+    private static final long serialVersionUID = -6055031479417822737L;
+    /* The .gitlet/index file. */
+    static final File INDEX_FILE = join(Repository.GITLET_DIR, "index");
+    /* Files modified this close to the time they were recorded are racy. */
+    private static final long RACY_MILLIS = 1000;
+
+    /**
+     * The stat data and hash of one working file.
+     */
+    private static class Entry implements Serializable {
+        /* Fixed for the same reason as the serialVersionUID of StatIndex. */
+        private static final long serialVersionUID = 2541158587806258069L;
+        /* The file size in bytes. */
+        private final long size;
+        /* The last modification time in milliseconds. */
+        private final long mtime;
+        /* The file key (device and inode), or an empty String if unsupported. */
+        private final String inode;
+        /* The time this entry was taken in milliseconds. */
+        private final long recordedAt;
+        /* The blob hash of the file contents. */
+        private final String hash;
+
+        Entry(long size, long mtime, String inode, long recordedAt, String hash) {
+            this.size = size;
+            this.mtime = mtime;
+            this.inode = inode;
+            this.recordedAt = recordedAt;
+            this.hash = hash;
+        }
+    }
+
+    /* The HashMap storing all the entries in the format of fileName: Entry. */
+    private HashMap<String, Entry> entries = new HashMap<>();
+    /* Whether the entries changed since they were loaded. */
+    private transient boolean dirty;
+
+    /**
+     * Read the index from INDEX_FILE, or start an empty one.
+     *
+     * @return The StatIndex object.
+     */
+    public static StatIndex load() {
+        if (INDEX_FILE.isFile()) {
+            try {
+                return readObject(INDEX_FILE, StatIndex.class);
+            } catch (IllegalArgumentException e) {
+                // A damaged cache is simply rebuilt.
+                INDEX_FILE.delete();
+            }
+        }
+        return new StatIndex();
+    }
+
+    /**
+     * Write the index to INDEX_FILE if it changed.
+     */
+    public void save() {
+        if (dirty) {
+            writeObject(INDEX_FILE, this);
+            dirty = false;
+        }
+    }
+
+    /**
+     * Get the blob hash of a working file, hashing it again only if
+     * its stat data changed since it was recorded.
+     *
+     * @param fileName The file name relative to the working directory.
+     * @param f        The working file.
+     * @return The SHA1 hash of the file contents.
+     */
+    public String hash(String fileName, File f) {
+        return hash(fileName, f, stat(f));
+    }
+
+    /**
+     * Get the blob hash of a working file whose stat data was just read,
+     * for example by a walk of the working tree.
+     *
+     * @param fileName The file name relative to the working directory.
+     * @param f        The working file.
+     * @param attrs    The stat data of the file.
+     * @return The SHA1 hash of the file contents.
+     */
+    public String hash(String fileName, File f, BasicFileAttributes attrs) {
+        String hash = cachedHash(fileName, attrs);
+        if (hash == null) {
+            hash = sha1(f);
+            put(fileName, attrs, hash);
+        }
+        return hash;
+    }
+
+    /**
+     * Get the recorded hash of a working file without reading it.
+     * Callers hashing many files on other threads look up and record
+     * the hashes here, on one thread.
+     *
+     * @param fileName The file name relative to the working directory.
+     * @param attrs    The stat data of the file.
+     * @return The recorded hash, or null if the file must be hashed.
+     */
+    public String cachedHash(String fileName, BasicFileAttributes attrs) {
+        Entry e = entries.get(fileName);
+        return e != null && matches(e, attrs) ? e.hash : null;
+    }
+
+    /**
+     * Record the stat data of a working file whose hash is already known,
+     * for example right after it was written by checkout.
+     *
+     * @param fileName The file name relative to the working directory.
+     * @param f        The working file.
+     * @param hash     The SHA1 hash of the file contents.
+     */
+    public void record(String fileName, File f, String hash) {
+        put(fileName, stat(f), hash);
+    }
+
+    /**
+     * Record the hash of a working file together with the stat data
+     * read before it was hashed.
+     *
+     * @param fileName The file name relative to the working directory.
+     * @param attrs    The stat data of the file.
+     * @param hash     The SHA1 hash of the file contents.
+     */
+    public void record(String fileName, BasicFileAttributes attrs, String hash) {
+        put(fileName, attrs, hash);
+    }
+
+    /**
+     * Check whether the working file still has the given hash,
+     * trusting the stat data when it is clean.
+     *
+     * @param fileName The file name relative to the working directory.
+     * @param f        The working file.
+     * @param hash     The expected hash.
+     * @return True if the file exists and its contents have the given hash.
+     */
+    public boolean isUnchanged(String fileName, File f, String hash) {
+        return f.isFile() && hash.equals(hash(fileName, f));
+    }
+
+    /**
+     * Forget a working file.
+     *
+     * @param fileName The file name relative to the working directory.
+     */
+    public void remove(String fileName) {
+        if (entries.remove(fileName) != null) {
+            dirty = true;
+        }
+    }
+
+    /**
+     * Add or replace the entry of a file.
+     */
+    private void put(String fileName, BasicFileAttributes attrs, String hash) {
+        Object key = attrs.fileKey();
+        entries.put(fileName, new Entry(attrs.size(), attrs.lastModifiedTime().toMillis(),
+                key == null ? "" : key.toString(), System.currentTimeMillis(), hash));
+        dirty = true;
+    }
+
+    /**
+     * Check whether the entry is clean and matches the stat data.
+     */
+    private static boolean matches(Entry e, BasicFileAttributes attrs) {
+        Object key = attrs.fileKey();
+        return e.mtime + RACY_MILLIS <= e.recordedAt
+                && e.size == attrs.size()
+                && e.mtime == attrs.lastModifiedTime().toMillis()
+                && e.inode.equals(key == null ? "" : key.toString());
+    }
+
+    /**
+     * Read the stat data of a file.
+     */
+    static BasicFileAttributes stat(File f) {
+        try {
+            return Files.readAttributes(f.toPath(), BasicFileAttributes.class);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+}
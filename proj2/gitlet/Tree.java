@@ -0,0 +1,296 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static gitlet.Utils.*;
+
+/**
+ * A content-addressed directory listing, like git's tree objects.
+ *
+ * A tree maps the names in one directory to either the hash of a blob
+ * or the id of the tree of a subdirectory. A commit only records the id of
+ * its root tree, so trees that did not change are shared between commits:
+ * changing one file only writes the trees on the path to that file,
+ * and two commits can be compared by skipping subtrees with the same id.
+ *
+ * A tree is encoded as the magic "GTRE", a version byte and the varint number
+ * of entries, followed by, for each entry in sorted order, a type byte,
+ * the varint length of the UTF-8 name, the name and the raw 20-byte hash.
+ * File names use "/" to separate directories.
+ *
+ * @author Guang Hou
+ */
+public class Tree {
+    /* Magic bytes at the start of an encoded tree. */
+    private static final byte[] MAGIC = {'G', 'T', 'R', 'E'};
+    /* The only encoding version written so far. */
+    private static final int VERSION = 1;
+    /* Type of an entry pointing to a blob. */
+    private static final int BLOB = 1;
+    /* Type of an entry pointing to a subtree. */
+    private static final int TREE = 2;
+
+    /**
+     * One name in a tree.
+     */
+    private static class Entry {
+        /* Whether the entry is a subtree rather than a blob. */
+        private final boolean isTree;
+        /* The blob hash or the subtree id. */
+        private final String hash;
+
+        Entry(boolean isTree, String hash) {
+            this.isTree = isTree;
+            this.hash = hash;
+        }
+    }
+
+    /* The entries of this tree in the format of name: Entry, sorted by name. */
+    private final TreeMap<String, Entry> entries = new TreeMap<>();
+
+    /**
+     * Write the trees of a full file list.
+     *
+     * @param blobs The files in the format of fileName: fileHash.
+     * @return The id of the root tree.
+     */
+    public static String write(Map<String, String> blobs) {
+        return update(null, blobs);
+    }
+
+    /**
+     * Apply changes to a tree, writing only the trees on the paths of changed files.
+     * Subtrees left empty are dropped; the root tree is always written.
+     *
+     * @param treeID  The id of the root tree to change, or null for an empty tree.
+     * @param changes The changes in the format of fileName: fileHash,
+     *                where a null fileHash removes the file.
+     * @return The id of the new root tree.
+     */
+    public static String update(String treeID, Map<String, String> changes) {
+        String id = update(treeID, changes, "");
+        return id != null ? id : save(new Tree());
+    }
+
+    /**
+     * Apply the changes under prefix to the tree of that directory.
+     *
+     * @return The id of the new tree, or null if it is empty.
+     */
+    private static String update(String treeID, Map<String, String> changes, String prefix) {
+        if (changes.isEmpty()) {
+            return treeID;
+        }
+        Tree tree = treeID == null ? new Tree() : read(treeID);
+
+        // Split the changes into files of this directory and files of each subdirectory.
+        HashMap<String, Map<String, String>> subdirChanges = new HashMap<>();
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+            String rest = change.getKey().substring(prefix.length());
+            int slash = rest.indexOf('/');
+            if (slash < 0) {
+                if (change.getValue() == null) {
+                    tree.entries.remove(rest);
+                } else {
+                    tree.entries.put(rest, new Entry(false, change.getValue()));
+                }
+            } else {
+                subdirChanges.computeIfAbsent(rest.substring(0, slash), k -> new HashMap<>())
+                        .put(change.getKey(), change.getValue());
+            }
+        }
+        for (Map.Entry<String, Map<String, String>> sub : subdirChanges.entrySet()) {
+            String name = sub.getKey();
+            Entry old = tree.entries.get(name);
+            String oldID = old != null && old.isTree ? old.hash : null;
+            String newID = update(oldID, sub.getValue(), prefix + name + "/");
+            if (newID == null) {
+                // A directory replaced by a file keeps the file put above.
+                if (old != null && old.isTree) {
+                    tree.entries.remove(name);
+                }
+            } else {
+                tree.entries.put(name, new Entry(true, newID));
+            }
+        }
+        return tree.entries.isEmpty() ? null : save(tree);
+    }
+
+    /**
+     * List every file under a tree.
+     *
+     * @param treeID The id of the root tree.
+     * @return The files in the format of fileName: fileHash.
+     */
+    public static HashMap<String, String> flatten(String treeID) {
+        HashMap<String, String> result = new HashMap<>();
+        flatten(treeID, "", result);
+        return result;
+    }
+
+    /**
+     * Add the files under a tree to result, with names starting with prefix.
+     */
+    private static void flatten(String treeID, String prefix, Map<String, String> result) {
+        for (Map.Entry<String, Entry> e : read(treeID).entries.entrySet()) {
+            if (e.getValue().isTree) {
+                flatten(e.getValue().hash, prefix + e.getKey() + "/", result);
+            } else {
+                result.put(prefix + e.getKey(), e.getValue().hash);
+            }
+        }
+    }
+
+    /**
+     * List the objects a tree points to directly, without reading its subtrees.
+     *
+     * @param treeID   The id of the tree.
+     * @param blobs    The list to add the blob hashes to.
+     * @param subtrees The list to add the subtree ids to.
+     */
+    public static void children(String treeID, List<String> blobs, List<String> subtrees) {
+        children(read(treeID), blobs, subtrees);
+    }
+
+    /**
+     * List the objects an encoded tree points to directly.
+     *
+     * @param bytes    The encoded tree.
+     * @param blobs    The list to add the blob hashes to.
+     * @param subtrees The list to add the subtree ids to.
+     */
+    public static void children(byte[] bytes, List<String> blobs, List<String> subtrees) {
+        children(decode(bytes), blobs, subtrees);
+    }
+
+    /**
+     * Add the blobs and subtrees of a tree to the lists.
+     */
+    private static void children(Tree tree, List<String> blobs, List<String> subtrees) {
+        for (Entry e : tree.entries.values()) {
+            (e.isTree ? subtrees : blobs).add(e.hash);
+        }
+    }
+
+    /**
+     * Find the files that differ between two trees.
+     * Subtrees with the same id in both trees are skipped without being read.
+     *
+     * @param oldTreeID The id of the old root tree, or null for an empty tree.
+     * @param newTreeID The id of the new root tree, or null for an empty tree.
+     * @return The changed files in the format of fileName: new fileHash,
+     *         where the fileHash is null if the file was removed.
+     */
+    public static TreeMap<String, String> diff(String oldTreeID, String newTreeID) {
+        TreeMap<String, String> result = new TreeMap<>();
+        diff(oldTreeID, newTreeID, "", result);
+        return result;
+    }
+
+    /**
+     * Add the differences between two trees to result, with names starting with prefix.
+     */
+    private static void diff(String oldTreeID, String newTreeID, String prefix,
+                             Map<String, String> result) {
+        if (oldTreeID != null && oldTreeID.equals(newTreeID)) {
+            return;
+        }
+        TreeMap<String, Entry> oldEntries = oldTreeID == null
+                ? new TreeMap<>() : read(oldTreeID).entries;
+        TreeMap<String, Entry> newEntries = newTreeID == null
+                ? new TreeMap<>() : read(newTreeID).entries;
+
+        for (Map.Entry<String, Entry> e : oldEntries.entrySet()) {
+            Entry newEntry = newEntries.get(e.getKey());
+            Entry oldEntry = e.getValue();
+            String path = prefix + e.getKey();
+            if (oldEntry.isTree) {
+                String newSubtree = newEntry != null && newEntry.isTree ? newEntry.hash : null;
+                diff(oldEntry.hash, newSubtree, path + "/", result);
+            } else if (newEntry == null || newEntry.isTree) {
+                result.put(path, null);
+            }
+        }
+        for (Map.Entry<String, Entry> e : newEntries.entrySet()) {
+            Entry oldEntry = oldEntries.get(e.getKey());
+            Entry newEntry = e.getValue();
+            String path = prefix + e.getKey();
+            if (newEntry.isTree) {
+                if (oldEntry == null || !oldEntry.isTree) {
+                    diff(null, newEntry.hash, path + "/", result);
+                }
+            } else if (oldEntry == null || oldEntry.isTree || !oldEntry.hash.equals(newEntry.hash)) {
+                result.put(path, newEntry.hash);
+            }
+        }
+    }
+
+    /**
+     * Read a tree from the object store.
+     */
+    private static Tree read(String treeID) {
+        byte[] bytes = ObjectStore.read(ObjectStore.Kind.TREE, treeID);
+        if (bytes == null) {
+            throw error("Missing tree %s.", treeID);
+        }
+        return decode(bytes);
+    }
+
+    /**
+     * Write a tree to the object store unless it already exists.
+     *
+     * @return The id of the tree.
+     */
+    private static String save(Tree tree) {
+        byte[] bytes = tree.encode();
+        String id = sha1(bytes);
+        ObjectStore.write(ObjectStore.Kind.TREE, id, bytes);
+        return id;
+    }
+
+    /**
+     * Encode this tree in the binary format.
+     */
+    private byte[] encode() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(MAGIC, 0, MAGIC.length);
+        out.write(VERSION);
+        writeVarint(out, entries.size());
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            out.write(e.getValue().isTree ? TREE : BLOB);
+            writeString(out, e.getKey());
+            out.write(hexToBytes(e.getValue().hash), 0, 20);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Decode a tree written by encode.
+     */
+    private static Tree decode(byte[] bytes) {
+        ByteBuffer in = ByteBuffer.wrap(bytes);
+        for (byte b : MAGIC) {
+            if (in.get() != b) {
+                throw error("Corrupt tree.");
+            }
+        }
+        if (in.get() != VERSION) {
+            throw error("Unknown tree version.");
+        }
+        Tree tree = new Tree();
+        int count = (int) readVarint(in);
+        byte[] raw = new byte[20];
+        for (int i = 0; i < count; i += 1) {
+            int type = in.get();
+            String name = readString(in);
+            in.get(raw);
+            tree.entries.put(name, new Entry(type == TREE, bytesToHex(raw)));
+        }
+        return tree;
+    }
+}
@@ -1,22 +1,34 @@
 package gitlet;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 import java.util.Formatter;
 import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 
 /** Assorted utilities.
@@ -63,6 +75,76 @@ class Utils {
         return sha1(vals.toArray(new Object[vals.size()]));
     }
 
+    /** Files up to this size are hashed through a heap buffer; larger ones
+     *  are memory-mapped a window at a time. */
+    private static final long MAP_THRESHOLD = 1 << 20;
+
+    /** The size of each memory-mapped window when hashing a large file. */
+    private static final long MAP_WINDOW = 64L << 20;
+
+    /** Returns the SHA-1 hash of the contents of FILE, streamed through a
+     *  FileChannel so that memory use does not depend on the file size.
+     *  Gives the same result as sha1(readContents(FILE)).  Throws
+     *  IllegalArgumentException in case of problems. */
+    static String sha1(File file) {
+        try (FileChannel ch = FileChannel.open(file.toPath(),
+                                               StandardOpenOption.READ)) {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            long size = ch.size();
+            if (size <= MAP_THRESHOLD) {
+                ByteBuffer buf = ByteBuffer.allocate((int) Math.max(size, 1));
+                while (ch.read(buf) > 0) {
+                    buf.flip();
+                    md.update(buf);
+                    buf.clear();
+                }
+            } else {
+                for (long pos = 0; pos < size; pos += MAP_WINDOW) {
+                    md.update(ch.map(FileChannel.MapMode.READ_ONLY, pos,
+                                     Math.min(MAP_WINDOW, size - pos)));
+                }
+            }
+            return bytesToHex(md.digest());
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        } catch (NoSuchAlgorithmException excp) {
+            throw new IllegalArgumentException("System does not support SHA-1");
+        }
+    }
+
+    /** Returns the 20 raw bytes of the hexadecimal SHA-1 UID ID. */
+    static byte[] hexToBytes(String id) {
+        byte[] result = new byte[id.length() / 2];
+        for (int i = 0; i < result.length; i += 1) {
+            result[i] = (byte) Integer.parseInt(id.substring(2 * i, 2 * i + 2), 16);
+        }
+        return result;
+    }
+
+    /** Returns true iff ID is a full SHA-1 UID in lower-case hexadecimal. */
+    static boolean isHexID(String id) {
+        if (id == null || id.length() != UID_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < id.length(); i += 1) {
+            char c = id.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Returns the hexadecimal numeral of the raw bytes in BYTES. */
+    static String bytesToHex(byte[] bytes) {
+        StringBuilder result = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            result.append(Character.forDigit((b >> 4) & 0xf, 16))
+                .append(Character.forDigit(b & 0xf, 16));
+        }
+        return result.toString();
+    }
+
     /* FILE DELETION */
 
     /** Deletes FILE if it exists and is not a directory.  Returns true
@@ -220,7 +302,261 @@ class Utils {
         }
     }
 
+    /** Return an object of type T deserialized from BYTES, casting it to
+     *  EXPECTEDCLASS.  Throws IllegalArgumentException in case of problems. */
+    static <T extends Serializable> T deserialize(byte[] bytes,
+                                                  Class<T> expectedClass) {
+        try {
+            ObjectInputStream in =
+                new ObjectInputStream(new ByteArrayInputStream(bytes));
+            T result = expectedClass.cast(in.readObject());
+            in.close();
+            return result;
+        } catch (IOException | ClassCastException
+                 | ClassNotFoundException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+
+
+    /* VARIABLE-LENGTH NUMBERS */
+
+    /** Write the non-negative VALUE to OUT, seven bits per byte, low bits
+     *  first, with the high bit set on every byte but the last. */
+    static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    /** Return the number written by writeVarint at the position of IN,
+     *  advancing the position past it. */
+    static long readVarint(ByteBuffer in) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in.get();
+            value |= (long) (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
 
+    /** Write the varint length of the UTF-8 encoding of S to OUT,
+     *  followed by the encoding itself. */
+    static void writeString(ByteArrayOutputStream out, String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    /** Return the String written by writeString at the position of IN,
+     *  which must wrap an array, advancing the position past it. */
+    static String readString(ByteBuffer in) {
+        int length = (int) readVarint(in);
+        String s = new String(in.array(), in.arrayOffset() + in.position(), length,
+                StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return s;
+    }
+
+    /* OBJECT COMPRESSION */
+
+    /** The bytes at the start of every compressed object, followed by
+     *  the code of its codec. Objects without them are stored as they are,
+     *  as every object was before compression; 0xF7 never starts UTF-8
+     *  text, so old objects are not mistaken for compressed ones. */
+    private static final byte[] COMPRESSED_MAGIC = {(byte) 0xF7, 'G', 'L', 'Z'};
+
+    /** The ways to compress objects, each with the code stored in the
+     *  header of the objects it compressed. */
+    enum Codec {
+        /** No compression, for objects that happen to start with the magic. */
+        NONE(0),
+        /** Deflate, as in zip: smaller objects. */
+        DEFLATE(1),
+        /** An LZ4-style codec: faster to write and to read. */
+        LZ(2);
+
+        /** The code stored in object headers. */
+        final int code;
+
+        Codec(int code) {
+            this.code = code;
+        }
+
+        /** Return the codec called NAME: "none", "deflate" or "lz". */
+        static Codec named(String name) {
+            for (Codec c : values()) {
+                if (c.name().equalsIgnoreCase(name)) {
+                    return c;
+                }
+            }
+            throw error("Unknown codec %s.", name);
+        }
+
+        /** Return the codec with CODE. */
+        static Codec withCode(int code) {
+            for (Codec c : values()) {
+                if (c.code == code) {
+                    return c;
+                }
+            }
+            throw error("Unknown codec %d.", code);
+        }
+
+        /** Return a stream compressing what is written to it into OUT.
+         *  Closing it closes OUT. */
+        OutputStream compressing(OutputStream out) {
+            switch (this) {
+                case DEFLATE:
+                    return new DeflaterOutputStream(out, new Deflater(), 1 << 16) {
+                        @Override
+                        public void close() throws IOException {
+                            super.close();
+                            def.end();
+                        }
+                    };
+                case LZ:
+                    return Lz.compressing(out);
+                default:
+                    return out;
+            }
+        }
+
+        /** Return a stream giving the bytes compressed into IN. */
+        InputStream decompressing(InputStream in) {
+            switch (this) {
+                case DEFLATE:
+                    return new InflaterInputStream(in, new Inflater(), 1 << 16) {
+                        @Override
+                        public void close() throws IOException {
+                            super.close();
+                            inf.end();
+                        }
+                    };
+                case LZ:
+                    return Lz.decompressing(in);
+                default:
+                    return in;
+            }
+        }
+    }
+
+    /** Return whether BYTES, the start of a stored object, begin with
+     *  the header of a compressed object. */
+    static boolean isCompressed(byte[] bytes) {
+        if (bytes.length <= COMPRESSED_MAGIC.length) {
+            return false;
+        }
+        for (int i = 0; i < COMPRESSED_MAGIC.length; i += 1) {
+            if (bytes[i] != COMPRESSED_MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Return CONTENTS as stored with CODEC: a header and the compressed
+     *  bytes, or CONTENTS themselves if compression does not make them
+     *  smaller and they cannot be mistaken for a compressed object. */
+    static byte[] compress(byte[] contents, Codec codec) {
+        ByteArrayOutputStream result = new ByteArrayOutputStream(contents.length / 2 + 16);
+        if (codec != Codec.NONE) {
+            try (OutputStream out = compressingTo(result, codec)) {
+                out.write(contents);
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+            if (result.size() < contents.length) {
+                return result.toByteArray();
+            }
+        }
+        if (!isCompressed(contents)) {
+            return contents;
+        }
+        result.reset();
+        result.write(COMPRESSED_MAGIC, 0, COMPRESSED_MAGIC.length);
+        result.write(Codec.NONE.code);
+        result.write(contents, 0, contents.length);
+        return result.toByteArray();
+    }
+
+    /** Write the contents of SOURCE to TARGET as stored with CODEC,
+     *  streaming them so that large files are never held in memory.
+     *  As for compress(byte[], Codec), SOURCE is copied as it is if
+     *  compression does not make it smaller, unless it could be mistaken
+     *  for a compressed object. */
+    static void compress(File source, File target, Codec codec) {
+        try {
+            if (codec != Codec.NONE) {
+                try (OutputStream out = compressingTo(
+                        Files.newOutputStream(target.toPath()), codec)) {
+                    Files.copy(source.toPath(), out);
+                }
+                if (target.length() < source.length()) {
+                    return;
+                }
+            }
+            if (!startsCompressed(source)) {
+                Files.copy(source.toPath(), target.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+                return;
+            }
+            try (OutputStream out = compressingTo(
+                    Files.newOutputStream(target.toPath()), Codec.NONE)) {
+                Files.copy(source.toPath(), out);
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Return the contents of the object stored as STORED. */
+    static byte[] decompress(byte[] stored) {
+        if (!isCompressed(stored)) {
+            return stored;
+        }
+        try (InputStream in = decompressing(new ByteArrayInputStream(stored))) {
+            return in.readAllBytes();
+        } catch (IOException excp) {
+            throw error("Corrupt object.");
+        }
+    }
+
+    /** Return a stream giving the contents of the object stored in IN,
+     *  compressed or not. Closing it closes IN. */
+    static InputStream decompressing(InputStream in) throws IOException {
+        PushbackInputStream pushback =
+                new PushbackInputStream(in, COMPRESSED_MAGIC.length + 1);
+        byte[] header = pushback.readNBytes(COMPRESSED_MAGIC.length + 1);
+        if (header.length == COMPRESSED_MAGIC.length + 1 && isCompressed(header)) {
+            return Codec.withCode(header[COMPRESSED_MAGIC.length]).decompressing(pushback);
+        }
+        pushback.unread(header);
+        return pushback;
+    }
+
+    /** Return a stream that writes the header of CODEC to OUT and then
+     *  compresses what is written to it. */
+    private static OutputStream compressingTo(OutputStream out, Codec codec)
+        throws IOException {
+        out.write(COMPRESSED_MAGIC);
+        out.write(codec.code);
+        return codec.compressing(out);
+    }
+
+    /** Return whether the file SOURCE starts with the header of a
+     *  compressed object. */
+    private static boolean startsCompressed(File source) throws IOException {
+        try (InputStream in = Files.newInputStream(source.toPath())) {
+            return isCompressed(in.readNBytes(COMPRESSED_MAGIC.length + 1));
+        }
+    }
 
     /* MESSAGES AND ERROR REPORTING */
 
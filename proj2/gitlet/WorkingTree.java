@@ -0,0 +1,211 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import static gitlet.Utils.*;
+
+/**
+ * The files of the working directory, down to any depth.
+ *
+ * The walk runs one fork-join task per directory, so the directories of
+ * a large tree are listed in parallel. The attributes read while listing
+ * are kept with each file and handed to the StatIndex, so a walked file
+ * is not stat'ed a second time. The .gitlet directory, symbolic links and
+ * the paths matched by .gitletignore are skipped.
+ *
+ * .gitletignore holds one glob pattern per line; blank lines and lines
+ * starting with # are skipped. A pattern ending with "/" only matches
+ * directories. A pattern containing another "/" matches the path from
+ * the working directory, otherwise it matches a name at any depth.
+ *
+ * @author Guang Hou
+ */
+public class WorkingTree {
+    /* The name of the ignore file in the working directory. */
+    static final String IGNORE_FILE = ".gitletignore";
+
+    /**
+     * One pattern of the ignore file.
+     */
+    private static class Rule {
+        /* The glob pattern. */
+        private final PathMatcher matcher;
+        /* Whether the pattern is matched against the whole path rather than the name. */
+        private final boolean anchored;
+        /* Whether the pattern only matches directories. */
+        private final boolean directoryOnly;
+
+        Rule(String pattern) {
+            directoryOnly = pattern.endsWith("/");
+            if (directoryOnly) {
+                pattern = pattern.substring(0, pattern.length() - 1);
+            }
+            anchored = pattern.contains("/");
+            if (pattern.startsWith("/")) {
+                pattern = pattern.substring(1);
+            }
+            matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+        }
+
+        /**
+         * Check whether the rule matches a path relative to the working directory.
+         */
+        boolean matches(Path relative, boolean isDirectory) {
+            if (directoryOnly && !isDirectory) {
+                return false;
+            }
+            return matcher.matches(anchored ? relative : relative.getFileName());
+        }
+    }
+
+    /**
+     * List the files of a directory and, in forked tasks, of its subdirectories.
+     */
+    private static class Walk extends RecursiveTask<List<Map.Entry<String, BasicFileAttributes>>> {
+        /* Fixed like every serializable class here, though walks are never serialized. */
+        private static final long serialVersionUID = 6917645008388854655L;
+        /* The working directory. */
+        private final Path root;
+        /* The directory to list. */
+        private final Path dir;
+        /* The ignore rules. */
+        private final List<Rule> rules;
+
+        Walk(Path root, Path dir, List<Rule> rules) {
+            this.root = root;
+            this.dir = dir;
+            this.rules = rules;
+        }
+
+        /**
+         * @return The files under dir as pairs of their name and their attributes.
+         */
+        @Override
+        protected List<Map.Entry<String, BasicFileAttributes>> compute() {
+            List<Map.Entry<String, BasicFileAttributes>> files = new ArrayList<>();
+            List<Walk> subdirs = new ArrayList<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+                for (Path p : entries) {
+                    BasicFileAttributes attrs = Files.readAttributes(p,
+                            BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    Path relative = root.relativize(p);
+                    if (isIgnored(relative, attrs.isDirectory())) {
+                        continue;
+                    }
+                    if (attrs.isDirectory()) {
+                        Walk w = new Walk(root, p, rules);
+                        w.fork();
+                        subdirs.add(w);
+                    } else if (attrs.isRegularFile()) {
+                        files.add(Map.entry(toName(relative), attrs));
+                    }
+                }
+            } catch (IOException e) {
+                // A directory removed or unreadable during the walk has no files to show.
+            }
+            for (Walk w : subdirs) {
+                files.addAll(w.join());
+            }
+            return files;
+        }
+
+        /**
+         * Check whether a path is the repository directory or matched by an ignore rule.
+         */
+        private boolean isIgnored(Path relative, boolean isDirectory) {
+            if (relative.getNameCount() == 1 && relative.toString().equals(".gitlet")) {
+                return true;
+            }
+            for (Rule r : rules) {
+                if (r.matches(relative, isDirectory)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * List the files of a working directory that are not ignored.
+     *
+     * @param root The working directory.
+     * @return The files in the format of fileName : attributes, sorted by name,
+     *         with names relative to root and separated by "/".
+     */
+    public static TreeMap<String, BasicFileAttributes> walk(File root) {
+        Path rootPath = root.toPath().toAbsolutePath();
+        List<Map.Entry<String, BasicFileAttributes>> files = ForkJoinPool.commonPool()
+                .invoke(new Walk(rootPath, rootPath, readRules(root)));
+        TreeMap<String, BasicFileAttributes> result = new TreeMap<>();
+        for (Map.Entry<String, BasicFileAttributes> f : files) {
+            result.put(f.getKey(), f.getValue());
+        }
+        return result;
+    }
+
+    /**
+     * Turn a file name given on the command line into the name gitlet tracks:
+     * relative to the working directory, normalized and separated by "/".
+     *
+     * @param root     The working directory.
+     * @param fileName The file name as given.
+     * @return The tracked name, or null if the file is outside the working directory.
+     */
+    public static String trackedName(File root, String fileName) {
+        Path rootPath = root.toPath().toAbsolutePath().normalize();
+        Path p = rootPath.resolve(fileName).normalize();
+        if (!p.startsWith(rootPath) || p.equals(rootPath)) {
+            return null;
+        }
+        return toName(rootPath.relativize(p));
+    }
+
+    /**
+     * Join the parts of a relative path with "/".
+     */
+    private static String toName(Path relative) {
+        if (relative.getNameCount() == 1) {
+            return relative.toString();
+        }
+        return relative.toString().replace(File.separatorChar, '/');
+    }
+
+    /**
+     * Read the rules of the ignore file of a working directory.
+     */
+    private static List<Rule> readRules(File root) {
+        List<Rule> rules = new ArrayList<>();
+        File ignore = join(root, IGNORE_FILE);
+        if (!ignore.isFile()) {
+            return rules;
+        }
+        try {
+            for (String line : Files.readAllLines(ignore.toPath(), StandardCharsets.UTF_8)) {
+                line = line.strip();
+                if (!line.isEmpty() && !line.startsWith("#")) {
+                    rules.add(new Rule(line));
+                }
+            }
+        } catch (IOException e) {
+            throw error("Cannot read %s.", IGNORE_FILE);
+        } catch (IllegalArgumentException e) {
+            throw error("Bad pattern in %s: %s", IGNORE_FILE, e.getMessage());
+        }
+        return rules;
+    }
+}